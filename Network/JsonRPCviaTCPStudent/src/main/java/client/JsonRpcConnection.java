@@ -0,0 +1,268 @@
+package client;
+
+import java.net.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import server.JsonFraming;
+
+/**
+ * A long-lived TCP connection to the json-rpc server. Every message is
+ * framed as described in JsonFraming, so many calls can travel over the
+ * same socket. Calls are written as soon
+ * as they are made (pipelined) and a reader thread hands each response to
+ * the caller waiting for the matching request id.
+ *
+ * @author Tim Lindquist ASU Polytechnic Department of Engineering
+ * @version April 2020
+ */
+public class JsonRpcConnection extends Object {
+
+   private static final boolean debugOn = false;
+   private Socket sock;
+   private DataOutputStream out;
+   private DataInputStream in;
+   private ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream();
+   private Map<Integer,CompletableFuture<JSONObject>> pending =
+      new ConcurrentHashMap<Integer,CompletableFuture<JSONObject>>();
+   // a batch under the id of each of its calls, the response may start with any of them
+   private Map<Integer,Batch> pendingBatches = new ConcurrentHashMap<Integer,Batch>();
+   // batches in the order they were sent, the server answers them in that order
+   private Queue<Batch> batchOrder = new ConcurrentLinkedQueue<Batch>();
+   private Map<Integer,Consumer<JSONObject>> streams =
+      new ConcurrentHashMap<Integer,Consumer<JSONObject>>();
+   private volatile boolean open = true;
+   // told about notifications (messages without an id) the server pushes
+   private volatile Consumer<JSONObject> notificationHandler;
+   private volatile Runnable closeHandler;
+
+   public JsonRpcConnection (String host, int port) throws IOException {
+      sock = new Socket(host,port);
+      sock.setTcpNoDelay(true);
+      out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+      Thread reader = new Thread(this::readResponses, "json-rpc reader "+host+":"+port);
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   public boolean isOpen(){
+      return open;
+   }
+
+   public void setNotificationHandler(Consumer<JSONObject> handler){
+      notificationHandler = handler;
+   }
+
+   /**
+    * Run once when the connection is closed, by either side
+    */
+   public void setCloseHandler(Runnable handler){
+      closeHandler = handler;
+   }
+
+   /**
+    * Sends the call and returns a future completed with the response object.
+    * The call must carry a unique integer id.
+    */
+   public CompletableFuture<JSONObject> send(JSONObject theCall){
+      int id = theCall.getInt("id");
+      CompletableFuture<JSONObject> future = new CompletableFuture<JSONObject>();
+      pending.put(id, future);
+      try{
+         synchronized (out) {
+            JsonFraming.write(out, theCall, frameBuffer);
+            out.flush();
+         }
+      }catch(IOException ex){
+         pending.remove(id);
+         future.completeExceptionally(ex);
+         close();
+      }
+      if (!open) {
+         // the reader may have failed everything before we registered
+         pending.remove(id);
+         future.completeExceptionally(new IOException("connection closed"));
+      }
+      return future;
+   }
+
+   /**
+    * Sends a call that the server answers with a stream of frames. Every
+    * frame carrying a "stream" member is handed to onFrame on the reader
+    * thread, the returned future is completed with the final response.
+    */
+   public CompletableFuture<JSONObject> sendStreaming(JSONObject theCall,
+                                                     Consumer<JSONObject> onFrame){
+      int id = theCall.getInt("id");
+      streams.put(id, onFrame);
+      CompletableFuture<JSONObject> future = send(theCall);
+      future.whenComplete((res, ex) -> streams.remove(id));
+      return future;
+   }
+
+   private static class Batch {
+      final CompletableFuture<JSONArray> future = new CompletableFuture<JSONArray>();
+      final List<Integer> ids = new ArrayList<Integer>();
+   }
+
+   /**
+    * Sends a JSON-RPC 2.0 batch and returns a future completed with the array
+    * of responses. The response is matched by the id of any call in the
+    * batch, the server leaves out notifications and may answer in any order.
+    * A batch of notifications only gets no response, its future is completed
+    * with an empty array once it was sent. An error the server answers the
+    * whole batch with (a single object with a null id) fails the future.
+    */
+   public CompletableFuture<JSONArray> sendBatch(JSONArray calls){
+      Batch batch = new Batch();
+      for (int i=0; i<calls.length(); i++){
+         JSONObject theCall = calls.optJSONObject(i);
+         if (theCall != null && theCall.has("id") && !theCall.isNull("id")) {
+            batch.ids.add(theCall.getInt("id"));
+         }
+      }
+      try{
+         synchronized (out) {
+            if (!batch.ids.isEmpty()) {
+               for (Integer id : batch.ids) {
+                  pendingBatches.put(id, batch);
+               }
+               batchOrder.add(batch);
+            }
+            JsonFraming.write(out, calls, frameBuffer);
+            out.flush();
+         }
+      }catch(IOException ex){
+         forget(batch);
+         batch.future.completeExceptionally(ex);
+         close();
+      }
+      if (batch.ids.isEmpty()) {
+         batch.future.complete(new JSONArray());
+      } else if (!open) {
+         forget(batch);
+         batch.future.completeExceptionally(new IOException("connection closed"));
+      }
+      return batch.future;
+   }
+
+   private void forget(Batch batch){
+      batchOrder.remove(batch);
+      for (Integer id : batch.ids) {
+         pendingBatches.remove(id);
+      }
+   }
+
+   /**
+    * The batch a response array answers: the one with a call of the same id
+    * as one of the responses, or the oldest if every response has a null id
+    */
+   private Batch batchFor(JSONArray responses){
+      for (int i=0; i<responses.length(); i++){
+         JSONObject res = responses.optJSONObject(i);
+         if (res != null && res.has("id") && !res.isNull("id")) {
+            Batch batch = pendingBatches.get(res.optInt("id",-1));
+            if (batch != null) {
+               return batch;
+            }
+         }
+      }
+      return batchOrder.peek();
+   }
+
+   private void readResponses(){
+      try{
+         while (open) {
+            Object response = JsonFraming.read(in);
+            if (response == null) {
+               break; // server closed the connection
+            }
+            debug("received from server: "+JsonFraming.abbreviate(response));
+            if (response instanceof JSONArray) {
+               JSONArray responses = (JSONArray)response;
+               Batch batch = batchFor(responses);
+               if (batch != null) {
+                  forget(batch);
+                  batch.future.complete(responses);
+               }
+               continue;
+            } else if (!(response instanceof JSONObject)) {
+               continue;
+            }
+            JSONObject res = (JSONObject)response;
+            if (res.has("error") && res.has("id") && res.isNull("id") && !batchOrder.isEmpty()) {
+               // the server could not take a batch apart and answers it with one error
+               Batch batch = batchOrder.peek();
+               if (batch != null) {
+                  forget(batch);
+                  batch.future.completeExceptionally(
+                     new IOException("batch failed: "+res.optJSONObject("error")));
+               }
+               continue;
+            }
+            if (!res.has("id") && res.has("method")) {
+               Consumer<JSONObject> handler = notificationHandler;
+               if (handler != null) {
+                  handler.accept(res);
+               }
+               continue;
+            }
+            if (res.has("stream")) {
+               Consumer<JSONObject> onFrame = streams.get(res.optInt("id",-1));
+               if (onFrame != null) {
+                  onFrame.accept(res);
+               }
+               continue;
+            }
+            CompletableFuture<JSONObject> future = pending.remove(res.optInt("id",-1));
+            if (future != null) {
+               future.complete(res);
+            }
+         }
+      }catch(Exception ex){
+         debug("reader stopped: "+ex.getMessage());
+      }
+      close();
+   }
+
+   public void close(){
+      boolean wasOpen = open;
+      open = false;
+      try{
+         sock.close();
+      }catch(IOException ex){
+         // already closed
+      }
+      IOException closed = new IOException("connection closed");
+      for (Integer id : pending.keySet()) {
+         CompletableFuture<JSONObject> future = pending.remove(id);
+         if (future != null) {
+            future.completeExceptionally(closed);
+         }
+      }
+      Batch batch;
+      while ((batch = batchOrder.poll()) != null) {
+         forget(batch);
+         batch.future.completeExceptionally(closed);
+      }
+      Runnable handler = closeHandler;
+      if (wasOpen && handler != null) {
+         handler.run();
+      }
+   }
+}
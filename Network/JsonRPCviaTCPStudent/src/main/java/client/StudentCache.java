@@ -0,0 +1,95 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import server.Student;
+
+/**
+ * Client side cache of students and of the names list, bounded in size and
+ * age. Entries are dropped when the server says a student changed. Each
+ * invalidation bumps a generation, a result is only cached if no
+ * invalidation arrived between sending the call and getting the answer,
+ * otherwise a stale answer could outlive the invalidation meant for it.
+ *
+ * @author Tim Lindquist ASU Polytechnic Department of Engineering
+ * @version April 2020
+ */
+class StudentCache extends Object {
+
+   private int maxEntries;
+   private long ttlMillis;
+   private long generation = 0;
+   private String[] names;
+   private long namesExpire;
+   // access order, so the least recently used student is evicted first
+   private LinkedHashMap<String,Entry> students;
+
+   StudentCache(int maxEntries, long ttlMillis) {
+      this.maxEntries = maxEntries;
+      this.ttlMillis = ttlMillis;
+      students = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > StudentCache.this.maxEntries;
+         }
+      };
+   }
+
+   public synchronized long generation() {
+      return generation;
+   }
+
+   public synchronized Student get(String name) {
+      Entry entry = students.get(name);
+      if (entry == null) {
+         return null;
+      }
+      if (entry.expire < System.currentTimeMillis()) {
+         students.remove(name);
+         return null;
+      }
+      return entry.student;
+   }
+
+   public synchronized void put(String name, Student stud, long seenGeneration) {
+      if (seenGeneration == generation) {
+         students.put(name, new Entry(stud, System.currentTimeMillis() + ttlMillis));
+      }
+   }
+
+   public synchronized String[] getNames() {
+      return (names != null && namesExpire >= System.currentTimeMillis()) ? names : null;
+   }
+
+   public synchronized void putNames(String[] names, long seenGeneration) {
+      if (seenGeneration == generation) {
+         this.names = names;
+         namesExpire = System.currentTimeMillis() + ttlMillis;
+      }
+   }
+
+   /**
+    * A student was added, changed or removed, any change also affects the names
+    */
+   public synchronized void invalidate(String name) {
+      generation++;
+      names = null;
+      students.remove(name);
+   }
+
+   public synchronized void clear() {
+      generation++;
+      names = null;
+      students.clear();
+   }
+
+   private static class Entry {
+      final Student student;
+      final long expire;
+
+      Entry(Student student, long expire) {
+         this.student = student;
+         this.expire = expire;
+      }
+   }
+}
@@ -0,0 +1,29 @@
+package client;
+
+import java.util.concurrent.CompletableFuture;
+
+import server.Student;
+
+/**
+ * Purpose: Asynchronous variant of the StudentCollection interface for clients.
+ * Every method returns right away with a future for the result, so a client
+ * can have many calls outstanding at once and join them when it needs them.
+ *
+ * Ser321 Distributed Apps, and Ser423 Mobile Apps
+ * @author Tim Lindquist Tim.Lindquist@asu.edu
+ *         Software Engineering, CIDSE, IAFSE, ASU Poly
+ * @version April 2020
+ */
+public interface StudentCollectionAsync {
+   public CompletableFuture<Boolean> saveToJsonFile();
+   public CompletableFuture<Boolean> resetFromJsonFile();
+   public CompletableFuture<Boolean> add(Student stud);
+   public CompletableFuture<Boolean> addAll(Student[] studs);
+   public CompletableFuture<Boolean> remove(String aName);
+   public CompletableFuture<Student> get(String aName);
+   public CompletableFuture<String> getNameById(int id);
+   public CompletableFuture<String[]> getNamesTaking(String course);
+   public CompletableFuture<String[]> getNamesTakingPrefix(String coursePrefix);
+   public CompletableFuture<String[]> getNames();
+   public CompletableFuture<Student[]> list(String cursor, int limit);
+}
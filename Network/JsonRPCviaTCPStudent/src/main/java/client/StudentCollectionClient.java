@@ -43,11 +43,15 @@ public class StudentCollectionClient extends Object {
          String url = "http://"+host+":"+port+"/";
          System.out.println("Opening connection to: "+url);
          StudentTcpProxy sc = (StudentTcpProxy)new StudentTcpProxy(host, Integer.parseInt(port));
+         if(args.length >= 3 && args[2].equalsIgnoreCase("cache")){
+            // cache up to 1000 students for at most a minute
+            sc.enableCache(1000, 60000);
+         }
 
          // get input
          BufferedReader stdin = new BufferedReader(
             new InputStreamReader(System.in));
-         System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+         System.out.print("Enter end or {add|get|getAll|getNameById|getNames|taking|remove|stats|export|import} followed by args>");
          String inStr = stdin.readLine();
          StringTokenizer st = new StringTokenizer(inStr);
          String opn = st.nextToken();
@@ -70,6 +74,12 @@ public class StudentCollectionClient extends Object {
                }
                Student result = sc.get(name);
                System.out.println("Got "+result.toString());
+            }else if (opn.equalsIgnoreCase("getAll")) {
+               // one call for the names and one batch message for all students
+               Student[] result = sc.getAll(sc.getNames());
+               for (int i = 0; i < result.length; i++){
+                  System.out.println("Got "+result[i].toString());
+               }
             }else if (opn.equalsIgnoreCase("getNames")) {
                String[] result = sc.getNames();
                System.out.print("The collection has entries for: ");
@@ -77,6 +87,14 @@ public class StudentCollectionClient extends Object {
                   System.out.print(result[i]+", ");
                }
                System.out.println();
+            }else if (opn.equalsIgnoreCase("taking")) {
+               String prefix = st.hasMoreTokens() ? st.nextToken() : "";
+               String[] result = sc.getNamesTakingPrefix(prefix);
+               System.out.print("Taking courses starting with "+prefix+": ");
+               for (int i = 0; i < result.length; i++){
+                  System.out.print(result[i]+", ");
+               }
+               System.out.println();
             }else if (opn.equalsIgnoreCase("remove")) {
                String name = st.nextToken();
                while(st.hasMoreTokens()){
@@ -84,16 +102,37 @@ public class StudentCollectionClient extends Object {
                }
                boolean result = sc.remove(name);
                System.out.println("remove "+name+" result "+result);
+            }else if (opn.equalsIgnoreCase("export")) {
+               // one student json per line, written as the pages arrive
+               String fileName = st.nextToken();
+               PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+               int count = sc.export(stud -> out.println(stud.toJsonString()), 500);
+               out.close();
+               System.out.println("Exported "+count+" students to "+fileName);
+            }else if (opn.equalsIgnoreCase("import")) {
+               // reads the file line by line while importing, it is never fully in memory
+               String fileName = st.nextToken();
+               BufferedReader in = new BufferedReader(new FileReader(fileName));
+               Iterator<Student> studs = in.lines()
+                  .filter(line -> !line.trim().isEmpty())
+                  .map(line -> new Student(new JSONObject(line)))
+                  .iterator();
+               int count = sc.importStudents(studs, 500);
+               in.close();
+               System.out.println("Imported "+count+" students from "+fileName);
+            }else if (opn.equalsIgnoreCase("stats")) {
+               System.out.println("Server stats: "+sc.serverStats().toString());
             }else if (opn.equalsIgnoreCase("getNamebyid")) {
                int idNo = Integer.parseInt(st.nextToken());
                String result = sc.getNameById(idNo);
                System.out.println(result+" has id number "+idNo);
             }
-            System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+            System.out.print("Enter end or {add|get|getAll|getNameById|getNames|taking|remove|stats|export|import} followed by args>");
             inStr = stdin.readLine();
             st = new StringTokenizer(inStr);
             opn = st.nextToken();
          }
+         sc.close();
       }catch (Exception e) {
          e.printStackTrace();
          System.out.println("Oops, you didn't enter the right stuff");
@@ -0,0 +1,118 @@
+package client;
+
+import server.Student;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONObject;
+import org.json.JSONArray;
+
+/**
+ * Asynchronous client proxy for the student collection. All calls share a
+ * single connection, each call is written right away and its future is
+ * completed by the connection's reader thread when the response with the
+ * matching id arrives. Issuing many calls and then joining them costs about
+ * one round trip plus the server's work instead of one round trip per call.
+ * If the call cannot be made or the connection drops, the future completes
+ * exceptionally.
+ *
+ * @author Tim Lindquist ASU Polytechnic Department of Engineering
+ * @version April 2020
+ */
+public class StudentTcpAsyncProxy extends Object implements StudentCollectionAsync {
+
+   private static AtomicInteger id = new AtomicInteger();
+   private String host;
+   private int port;
+   private JsonRpcConnection conn;
+
+   public StudentTcpAsyncProxy (String host, int port){
+      this.host = host;
+      this.port = port;
+   }
+
+   /**
+    * The shared connection, (re)opened if it was never opened or dropped
+    */
+   private synchronized JsonRpcConnection connection() throws IOException {
+      if (conn == null || !conn.isOpen()) {
+         conn = new JsonRpcConnection(host, port);
+      }
+      return conn;
+   }
+
+   public synchronized void close(){
+      if (conn != null) {
+         conn.close();
+         conn = null;
+      }
+   }
+
+   private CompletableFuture<JSONObject> call(String method, Object... params){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",id.incrementAndGet());
+      theCall.put("jsonrpc","2.0");
+      theCall.put("params",new JSONArray(Arrays.asList(params)));
+      try{
+         return connection().send(theCall);
+      }catch(IOException ex){
+         CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+         failed.completeExceptionally(ex);
+         return failed;
+      }
+   }
+
+   private CompletableFuture<Boolean> booleanCall(String method, Object... params){
+      return call(method, params).thenApply(res -> res.optBoolean("result",false));
+   }
+
+   public CompletableFuture<Boolean> saveToJsonFile() {
+      return booleanCall("saveToJsonFile");
+   }
+
+   public CompletableFuture<Boolean> resetFromJsonFile() {
+      return booleanCall("resetFromJsonFile");
+   }
+
+   public CompletableFuture<Boolean> add(Student stud) {
+      return booleanCall("add", stud.toJson());
+   }
+
+   public CompletableFuture<Boolean> addAll(Student[] studs) {
+      JSONArray studsJson = new JSONArray();
+      for (int i=0; i<studs.length; i++){
+         studsJson.put(studs[i].toJson());
+      }
+      return booleanCall("addAll", studsJson);
+   }
+
+   public CompletableFuture<Boolean> remove(String aName) {
+      return booleanCall("remove", aName);
+   }
+
+   public CompletableFuture<Student> get(String aName) {
+      return call("get", aName).thenApply(StudentTcpProxy::studentResult);
+   }
+
+   public CompletableFuture<String> getNameById(int id) {
+      return call("getNameById", id).thenApply(res -> res.optString("result","unknown"));
+   }
+
+   public CompletableFuture<String[]> getNamesTaking(String course) {
+      return call("getNamesTaking", course).thenApply(StudentTcpProxy::namesResult);
+   }
+
+   public CompletableFuture<String[]> getNamesTakingPrefix(String coursePrefix) {
+      return call("getNamesTakingPrefix", coursePrefix).thenApply(StudentTcpProxy::namesResult);
+   }
+
+   public CompletableFuture<String[]> getNames() {
+      return call("getNames").thenApply(StudentTcpProxy::namesResult);
+   }
+
+   public CompletableFuture<Student[]> list(String cursor, int limit) {
+      return call("list", cursor, limit).thenApply(StudentTcpProxy::pageResult);
+   }
+}
@@ -4,7 +4,17 @@ import server.Student;
 import server.StudentCollection;
 import java.net.*;
 import java.io.*;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -21,10 +31,18 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   private static final int poolSize = 2;
+   private static AtomicInteger id = new AtomicInteger();
+   // calls that change the collection, see invalidate()
+   private static final Set<String> writes =
+      new HashSet<String>(Arrays.asList("add","addAll","remove","resetFromJsonFile"));
    private String host;
    private int port;
+   private JsonRpcConnection[] pool = new JsonRpcConnection[poolSize];
+   private AtomicInteger next = new AtomicInteger();
+   // optional read cache, kept fresh by invalidations pushed over cacheConn
+   private StudentCache cache;
+   private JsonRpcConnection cacheConn;
    
    public StudentTcpProxy (String host, int port){
       this.host = host;
@@ -36,6 +54,118 @@ public class StudentTcpProxy extends Object implements StudentCollection {
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Picks one of the pooled connections round robin, (re)opening it
+    * if it was never opened or the server dropped it.
+    */
+   private JsonRpcConnection connection() throws IOException {
+      int slot = Math.floorMod(next.getAndIncrement(), poolSize);
+      synchronized (pool) {
+         if (pool[slot] == null || !pool[slot].isOpen()) {
+            pool[slot] = new JsonRpcConnection(host, port);
+         }
+         return pool[slot];
+      }
+   }
+
+   /**
+    * Turns on caching of get and getNames results. Cached students are
+    * dropped when the server reports a change, when they are older than
+    * ttlMillis, or when more than maxEntries students are cached.
+    */
+   public void enableCache(int maxEntries, long ttlMillis){
+      synchronized (pool) {
+         cache = new StudentCache(maxEntries, ttlMillis);
+      }
+   }
+
+   /**
+    * The cache, once the invalidation subscription is in place. Without a
+    * working subscription nothing is served from or put into the cache.
+    */
+   private StudentCache cache(){
+      synchronized (pool) {
+         if (cache == null) {
+            return null;
+         }
+         if (cacheConn == null || !cacheConn.isOpen()) {
+            // we may have missed invalidations while not subscribed
+            cache.clear();
+            try{
+               JsonRpcConnection conn = new JsonRpcConnection(host, port);
+               StudentCache theCache = cache;
+               conn.setNotificationHandler(note -> {
+                  if ("invalidate".equals(note.optString("method"))) {
+                     JSONArray names = note.optJSONArray("params");
+                     for (int i=0; names != null && i<names.length(); i++){
+                        if ("*".equals(names.optString(i))) {
+                           theCache.clear();
+                        } else {
+                           theCache.invalidate(names.optString(i));
+                        }
+                     }
+                  }
+               });
+               conn.setCloseHandler(theCache::clear);
+               conn.send(newCall("subscribeInvalidations")).get();
+               cacheConn = conn;
+            }catch(Exception ex){
+               debug("cannot subscribe to invalidations: "+ex.getMessage());
+               return null;
+            }
+         }
+         return cache;
+      }
+   }
+
+   /**
+    * Drops what a write call changes from our own cache. The server's
+    * invalidation for it comes back some time later, a read right after the
+    * write must not be answered from the cache until then. Called before the
+    * call is sent, so a read racing with the write is not cached, and again
+    * once it returned, in case such a read cached the old value anyway.
+    */
+   private void invalidate(String method, Object[] params){
+      StudentCache theCache;
+      synchronized (pool) {
+         theCache = cache;
+      }
+      if (theCache == null || !writes.contains(method)) {
+         return;
+      }
+      Object param = (params.length > 0) ? params[0] : null;
+      if (method.equals("add") && param instanceof JSONObject) {
+         theCache.invalidate(((JSONObject)param).optString("name"));
+      } else if (method.equals("addAll") && param instanceof JSONArray) {
+         JSONArray studsJson = (JSONArray)param;
+         for (int i=0; i<studsJson.length(); i++){
+            theCache.invalidate(studsJson.getJSONObject(i).optString("name"));
+         }
+      } else if (method.equals("remove") && param != null) {
+         theCache.invalidate(param.toString());
+      } else {
+         theCache.clear();
+      }
+   }
+
+   /**
+    * Closes all pooled connections
+    */
+   public void close(){
+      synchronized (pool) {
+         if (cacheConn != null) {
+            cacheConn.close();
+            cacheConn = null;
+         }
+         for (int i=0; i<pool.length; i++){
+            if (pool[i] != null) {
+               pool[i].close();
+               pool[i] = null;
+            }
+         }
+      }
+   }
+
    /**
     * Generic method caller using TCP
     * @param method
@@ -43,108 +173,292 @@ public class StudentTcpProxy extends Object implements StudentCollection {
     * @return
     */
    public String callMethod(String method, Object[] params){
+      return call(method, params).toString();
+   }
+
+   /**
+    * Makes the call and returns the response object as it was parsed off the
+    * connection, an empty object if the call failed. The typed methods below
+    * use this directly so a response is not turned back into a String and
+    * parsed a second time.
+    */
+   private JSONObject call(String method, Object... params){
+      JSONObject ret = new JSONObject();
+      invalidate(method, params);
+      try{
+         // send over a pooled connection and wait for the matching response
+         ret = connection().send(newCall(method, params)).get();
+         if (debugOn)
+            debug("call received from server: "+ret.toString());
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+      }
+      invalidate(method, params);
+      return ret;
+   }
+
+   private JSONObject newCall(String method, Object... params){
       // create JSON RPC message
       JSONObject theCall = new JSONObject();
-      String ret = "{}";
-      try{
+      theCall.put("method",method);
+      theCall.put("id",id.incrementAndGet());
+      theCall.put("jsonrpc","2.0");
+      theCall.put("params",new JSONArray(Arrays.asList(params)));
+      if (debugOn)
          debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
-         // return
-         debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
+      return theCall;
+   }
+
+   /**
+    * Generic batch caller, sends all calls as one JSON-RPC 2.0 batch in a
+    * single message. The responses are returned in the order of the calls,
+    * a call without a response gets an empty object.
+    * @param methods method name of each call
+    * @param params parameters of each call
+    * @return
+    */
+   public JSONObject[] callBatch(String[] methods, Object[][] params){
+      JSONObject[] ret = new JSONObject[methods.length];
+      for (int i=0; i<ret.length; i++){
+         ret[i] = new JSONObject();
+      }
+      if (methods.length == 0) {
+         return ret;
+      }
+      try{
+         JSONArray calls = new JSONArray();
+         for (int i=0; i<methods.length; i++){
+            JSONObject theCall = new JSONObject();
+            theCall.put("method",methods[i]);
+            theCall.put("id",id.incrementAndGet());
+            theCall.put("jsonrpc","2.0");
+            theCall.put("params",new JSONArray(Arrays.asList(params[i])));
+            calls.put(theCall);
+         }
+         debug("Batch request of "+calls.length()+" calls");
+         for (int i=0; i<methods.length; i++){
+            invalidate(methods[i], params[i]);
+         }
+         JSONArray responses;
+         try{
+            responses = connection().sendBatch(calls).get();
+         }finally{
+            for (int i=0; i<methods.length; i++){
+               invalidate(methods[i], params[i]);
+            }
+         }
+         // the server may leave out responses, so match them to the calls by id
+         Map<Integer,Integer> position = new HashMap<Integer,Integer>();
+         for (int i=0; i<calls.length(); i++){
+            position.put(calls.getJSONObject(i).getInt("id"), i);
+         }
+         for (int i=0; i<responses.length(); i++){
+            JSONObject res = responses.getJSONObject(i);
+            Integer pos = position.get(res.optInt("id",-1));
+            if (pos != null) {
+               ret[pos] = res;
+            }
+         }
       }catch(Exception ex){
-         System.out.println("exception in callMethod: "+ex.getMessage());
+         System.out.println("exception in callBatch: "+ex.getMessage());
       }
       return ret;
    }
 
    public boolean saveToJsonFile() {
-      boolean ret = false;
-      String result = callMethod("saveToJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return call("saveToJsonFile").optBoolean("result",false);
    }
    
    public boolean resetFromJsonFile() {
-      boolean ret = false;
-      String result = callMethod("resetFromJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return call("resetFromJsonFile").optBoolean("result",false);
    }
    
    public boolean add(Student stud) {
-      boolean ret = false;
-      String result = callMethod("add", new Object[]{stud.toJson()});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
+      return call("add", stud.toJson()).optBoolean("result",false);
+   }
+   
+   public boolean addAll(Student[] studs) {
+      JSONArray studsJson = new JSONArray();
+      for (int i=0; i<studs.length; i++){
+         studsJson.put(studs[i].toJson());
+      }
+      return call("addAll", studsJson).optBoolean("result",false);
+   }
+   
+   /**
+    * Imports students from the source in chunks of addAll calls. Up to
+    * maxInFlight chunks are sent before waiting for the oldest one, so the
+    * import is limited by bandwidth rather than round trips, while only a
+    * few chunks are ever held in memory.
+    * @return number of students the server accepted
+    */
+   public int importStudents(Iterator<Student> source, int chunkSize) {
+      final int maxInFlight = 8;
+      Deque<CompletableFuture<JSONObject>> inFlight = new ArrayDeque<CompletableFuture<JSONObject>>();
+      Deque<JSONArray> chunks = new ArrayDeque<JSONArray>();
+      int imported = 0;
+      try{
+         JsonRpcConnection conn = connection();
+         while (source.hasNext()) {
+            JSONArray studsJson = new JSONArray();
+            while (studsJson.length() < chunkSize && source.hasNext()) {
+               studsJson.put(source.next().toJson());
+            }
+            invalidate("addAll", new Object[]{studsJson});
+            inFlight.add(conn.send(newCall("addAll", studsJson)));
+            chunks.add(studsJson);
+            if (inFlight.size() >= maxInFlight) {
+               imported += chunkResult(inFlight.poll().get(), chunks.poll());
+            }
+         }
+         while (!inFlight.isEmpty()) {
+            imported += chunkResult(inFlight.poll().get(), chunks.poll());
+         }
+      }catch(Exception ex){
+         System.out.println("exception in importStudents: "+ex.getMessage());
+      }finally{
+         for (JSONArray studsJson : chunks) {
+            invalidate("addAll", new Object[]{studsJson});
+         }
+      }
+      return imported;
+   }
+
+   private int chunkResult(JSONObject res, JSONArray chunk) {
+      invalidate("addAll", new Object[]{chunk});
+      return res.optBoolean("result",false) ? chunk.length() : 0;
+   }
+
+   /**
+    * Streams every student of the collection to the sink, page by page as
+    * the server sends them, without holding the whole collection.
+    * @return number of students received
+    */
+   public int export(Consumer<Student> sink, int chunkSize) {
+      int[] count = {0};
+      try{
+         connection().sendStreaming(newCall("export", chunkSize), frame -> {
+            JSONArray studsJson = frame.getJSONArray("stream");
+            for (int i=0; i<studsJson.length(); i++){
+               sink.accept(new Student(studsJson.getJSONObject(i)));
+               count[0]++;
+            }
+         }).get();
+      }catch(Exception ex){
+         System.out.println("exception in export: "+ex.getMessage());
+      }
+      return count[0];
+   }
+
+   /**
+    * Gets all the named students with one batch message instead of one
+    * call per student.
+    */
+   public Student[] getAll(String[] names) {
+      String[] methods = new String[names.length];
+      Object[][] params = new Object[names.length][];
+      for (int i=0; i<names.length; i++){
+         methods[i] = "get";
+         params[i] = new Object[]{names[i]};
+      }
+      JSONObject[] results = callBatch(methods, params);
+      Student[] ret = new Student[names.length];
+      for (int i=0; i<results.length; i++){
+         ret[i] = studentResult(results[i]);
+      }
       return ret;
    }
    
    public boolean remove(String aName) {
-      boolean ret = false;
-      String result = callMethod("remove", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return call("remove", aName).optBoolean("result",false);
    }
    
    public Student get(String aName) {
-      Student ret = new Student("unknown",-999, new String[]{"unknown"});
-      String result = callMethod("get", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      JSONObject studJson = res.optJSONObject("result");
-      ret = new Student(studJson);
+      StudentCache theCache = cache();
+      if (theCache == null) {
+         return studentResult(call("get", aName));
+      }
+      Student ret = theCache.get(aName);
+      if (ret == null) {
+         long seen = theCache.generation();
+         JSONObject res = call("get", aName);
+         ret = studentResult(res);
+         if (res.has("result")) {
+            theCache.put(aName, ret, seen);
+         }
+      }
       return ret;
    }
    
    public String getNameById(int id) {
-      String ret = "unknown";
-      String result = callMethod("getNameById", new Object[]{id});
-      JSONObject res = new JSONObject(result);
-      ret = res.optString("result","unknown");
-      return ret;
+      return call("getNameById", id).optString("result","unknown");
    }
    
+   public Student[] list(String cursor, int limit) {
+      return pageResult(call("list", cursor, limit));
+   }
+
    public String[] getNames() {
-      String[] ret = new String[]{};
-      String result = callMethod("getNames", new Object[0]);
-      debug("result of getNames is: "+result);
-      JSONObject res = new JSONObject(result);
+      StudentCache theCache = cache();
+      if (theCache == null) {
+         return namesResult(call("getNames"));
+      }
+      String[] ret = theCache.getNames();
+      if (ret == null) {
+         long seen = theCache.generation();
+         JSONObject res = call("getNames");
+         ret = namesResult(res);
+         if (res.has("result")) {
+            theCache.putNames(ret, seen);
+         }
+      }
+      return ret.clone();
+   }
+
+   public String[] getNamesTaking(String course) {
+      return namesResult(call("getNamesTaking", course));
+   }
+
+   public String[] getNamesTakingPrefix(String coursePrefix) {
+      return namesResult(call("getNamesTakingPrefix", coursePrefix));
+   }
+
+   /**
+    * Connection and queue metrics of the server, not part of the collection
+    */
+   public JSONObject serverStats() {
+      JSONObject stats = call("serverStats").optJSONObject("result");
+      return (stats == null) ? new JSONObject() : stats;
+   }
+
+   static Student[] pageResult(JSONObject res) {
+      JSONObject page = res.optJSONObject("result");
+      JSONArray studsJson = (page == null) ? null : page.optJSONArray("students");
+      if (studsJson == null) {
+         return new Student[0];
+      }
+      Student[] ret = new Student[studsJson.length()];
+      for (int i=0; i<ret.length; i++){
+         ret[i] = new Student(studsJson.getJSONObject(i));
+      }
+      return ret;
+   }
+
+   static Student studentResult(JSONObject res) {
+      JSONObject studJson = res.optJSONObject("result");
+      return (studJson == null) ?
+         new Student("unknown",-999, new String[]{"unknown"}) : new Student(studJson);
+   }
+
+   static String[] namesResult(JSONObject res) {
       JSONArray namesJson = res.optJSONArray("result");
-      ret = new String[namesJson.length()];
+      if (namesJson == null) {
+         return new String[]{};
+      }
+      String[] ret = new String[namesJson.length()];
       for (int i=0; i<namesJson.length(); i++){
          ret[i] = namesJson.optString(i,"unknown");
       }
       return ret;
    }
 }
-
@@ -0,0 +1,144 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Framing used by both the student server and the client proxy. Every
+ * json-rpc message on the socket is a 4 byte length (big endian) followed
+ * by that many bytes of UTF-8 json text. There is no upper limit on the
+ * size of a message, a frame is parsed straight off the stream so the
+ * receiver never needs to know the size of a message in advance or copy
+ * it into an intermediate String.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ * @author Tim Lindquist Tim.Lindquist@asu.edu
+ *         Software Engineering, CIDSE, IAFSE, ASU Poly
+ * @version April 2020
+ */
+public class JsonFraming extends Object {
+
+   private JsonFraming(){
+   }
+
+   /**
+    * Reads one frame and parses it into a JSONObject or JSONArray.
+    * @return the parsed value or null if the peer closed the connection
+    *         before the start of a new frame
+    */
+   public static Object read(DataInputStream in) throws IOException {
+      int len;
+      try {
+         len = in.readInt();
+      } catch (EOFException e) {
+         return null;
+      }
+      if (len < 0) {
+         throw new IOException("invalid frame length "+len);
+      }
+      FrameInputStream frame = new FrameInputStream(in, len);
+      try {
+         Reader reader = new BufferedReader(
+            new InputStreamReader(frame, StandardCharsets.UTF_8));
+         return new JSONTokener(reader).nextValue();
+      } catch (RuntimeException e) {
+         throw new IOException("malformed frame: "+e.getMessage());
+      } finally {
+         // skip trailing whitespace or anything the parser left behind
+         frame.skipRest();
+      }
+   }
+
+   /**
+    * Serializes the json value into the reusable buffer and writes it as one
+    * frame. The stream is not flushed, so callers can write several frames
+    * before flushing once.
+    */
+   public static void write(DataOutputStream out, Object value,
+                            ByteArrayOutputStream buffer) throws IOException {
+      buffer.reset();
+      Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+      if (value instanceof JSONObject) {
+         ((JSONObject)value).write(writer);
+      } else if (value instanceof JSONArray) {
+         ((JSONArray)value).write(writer);
+      } else {
+         writer.write(String.valueOf(value));
+      }
+      writer.flush();
+      out.writeInt(buffer.size());
+      buffer.writeTo(out);
+   }
+
+   /**
+    * Shortens long messages for log output, a multi megabyte response
+    * should not end up on the console.
+    */
+   public static String abbreviate(Object value){
+      String str = String.valueOf(value);
+      if (str.length() > 256) {
+         return str.substring(0,256)+"... ("+str.length()+" chars)";
+      }
+      return str;
+   }
+
+   /**
+    * Input stream limited to the bytes of one frame
+    */
+   private static class FrameInputStream extends FilterInputStream {
+      private int remaining;
+
+      FrameInputStream(InputStream in, int len){
+         super(in);
+         remaining = len;
+      }
+
+      public int read() throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+         int b = in.read();
+         if (b < 0) {
+            throw new EOFException("connection closed inside a frame");
+         }
+         remaining--;
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+         int n = in.read(b, off, Math.min(len, remaining));
+         if (n < 0) {
+            throw new EOFException("connection closed inside a frame");
+         }
+         remaining -= n;
+         return n;
+      }
+
+      public int available() throws IOException {
+         return Math.min(in.available(), remaining);
+      }
+
+      public void close() {
+         // never close the socket stream underneath
+      }
+
+      void skipRest() throws IOException {
+         while (remaining > 0) {
+            long n = in.skip(remaining);
+            if (n <= 0) {
+               if (in.read() < 0) {
+                  throw new EOFException("connection closed inside a frame");
+               }
+               n = 1;
+            }
+            remaining -= n;
+         }
+      }
+   }
+}
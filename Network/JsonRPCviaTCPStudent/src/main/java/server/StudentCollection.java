@@ -12,8 +12,12 @@ public interface StudentCollection {
    public boolean saveToJsonFile();
    public boolean resetFromJsonFile();
    public boolean add(Student stud);
+   public boolean addAll(Student[] studs);
    public boolean remove(String aName);
    public Student get(String aName);
    public String getNameById(int id);
+   public String[] getNamesTaking(String course);
+   public String[] getNamesTakingPrefix(String coursePrefix);
    public String[] getNames();
+   public Student[] list(String cursor, int limit);
 }
@@ -1,7 +1,15 @@
 package server;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.BufferedReader;
@@ -14,6 +22,7 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Purpose: This class is part of an example developed to demonstrate distributed
@@ -26,18 +35,75 @@ import java.io.IOException;
  **/
 class StudentCollectionImpl extends Object implements StudentCollection{
 
-   public Hashtable<String,Student> students;
+   // reads never lock, updates only lock the bin of the student they change
+   private ConcurrentHashMap<String,Student> students;
+   // kept in step with students, updated inside the atomic update of each student
+   private StudentIndex index = new StudentIndex();
+   // single updates share this lock, only a reset of the whole collection takes it exclusively
+   private ReadWriteLock resetLock = new ReentrantReadWriteLock();
+   // bumped on every change, a cached names array is only valid for its version
+   private AtomicLong version = new AtomicLong();
+   private AtomicReference<NamesSnapshot> namesCache = new AtomicReference<NamesSnapshot>();
    private static final boolean debugOn = false;
    private static final String studentJsonFileName = "students.json";
+   // saveToJsonFile compacts the log into a snapshot once it has more records than this,
+   // or more than there are students
+   private static final long compactThreshold = 10000;
+   private File dataDir;
+   private StudentLog log;
+   private Object compactLock = new Object();
+   // told the name of every student that changed, null if everything changed
+   private List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<Consumer<String>>();
 
    public StudentCollectionImpl() {
+      this(new File("."));
+   }
+
+   /**
+    * Recovers the collection from the snapshot and log in dataDir, or if
+    * there are none or they cannot be read, starts from the students json
+    * file in that directory.
+    * The fsync policy is taken from the students.fsync system property
+    * (ALWAYS, ON_SAVE or NEVER), the default is ON_SAVE.
+    */
+   public StudentCollectionImpl(File dataDir) {
       debug("creating a new student collection");
-      students = new Hashtable<String,Student>();
+      this.dataDir = dataDir;
+      students = new ConcurrentHashMap<String,Student>();
+      StudentLog.FsyncPolicy policy = StudentLog.FsyncPolicy.valueOf(
+         System.getProperty("students.fsync","ON_SAVE"));
+      log = new StudentLog(dataDir, policy);
+      boolean recovered = false;
+      ConcurrentHashMap<String,Student> recoveredStudents =
+         new ConcurrentHashMap<String,Student>();
       try{
-         this.resetFromJsonFile();
-      }catch(Exception ex){
-         System.out.println("error resetting from students json file"+
-                            ex.getMessage());
+         recovered = log.recover(recoveredStudents);
+      }catch(IOException ex){
+         System.out.println("cannot recover student collection, starting from "+
+                            studentJsonFileName+": "+ex.getMessage());
+         recovered = false;
+      }
+      try{
+         log.open();
+      }catch(IOException ex){
+         throw new UncheckedIOException("cannot open student log", ex);
+      }
+      if (recovered) {
+         for (Student stud : recoveredStudents.values()) {
+            put(stud, false);
+         }
+      } else {
+         loadJsonFile();
+      }
+   }
+
+   public void addChangeListener(Consumer<String> listener) {
+      changeListeners.add(listener);
+   }
+
+   private void fireChanged(String name) {
+      for (Consumer<String> listener : changeListeners) {
+         listener.accept(name);
       }
    }
 
@@ -46,22 +112,74 @@ class StudentCollectionImpl extends Object implements StudentCollection{
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Replaces the collection with the state of the last save, dropping the
+    * changes made since. The students json file is only read if nothing
+    * was ever saved.
+    */
    public boolean resetFromJsonFile() {
+      boolean found;
+      try{
+         synchronized (compactLock) {
+            ConcurrentHashMap<String,Student> saved = new ConcurrentHashMap<String,Student>();
+            resetLock.writeLock().lock();
+            try {
+               found = log.restoreSaved(saved);
+               students.clear();
+               index.clear();
+               for (Student stud : saved.values()) {
+                  put(stud, false);
+               }
+            } finally {
+               version.incrementAndGet();
+               resetLock.writeLock().unlock();
+            }
+            fireChanged(null);
+         }
+      }catch (Exception ex){
+         System.out.println("Exception restoring saved students: "+ex.getMessage());
+         return false;
+      }
+      return found || loadJsonFile();
+   }
+
+   /**
+    * Replaces the collection with the content of the students json file and
+    * makes that the new snapshot, so the old log is not replayed on top of it.
+    */
+   private boolean loadJsonFile() {
       boolean ret = true;
       try{
-         students.clear();
-         String fileName = studentJsonFileName;
-         File f = new File(fileName);
+         File f = new File(dataDir, studentJsonFileName);
          FileInputStream is = new FileInputStream(f);
-         JSONObject studentMap = new JSONObject(new JSONTokener(is));
-         Iterator<String> it = studentMap.keys();
-         while (it.hasNext()){
-            String mType = it.next();
-            JSONObject studentJson = studentMap.optJSONObject(mType);
-            Student stud = new Student(studentJson);
-            students.put(stud.name, stud);
-            debug("added "+stud.name+" : "+stud.toJsonString()+
-                  "\nstudents.size() is: " + students.size());
+         JSONObject studentMap;
+         try {
+            studentMap = new JSONObject(new JSONTokener(is));
+         } finally {
+            is.close();
+         }
+         int gen;
+         synchronized (compactLock) {
+            resetLock.writeLock().lock();
+            try {
+               students.clear();
+               index.clear();
+               Iterator<String> it = studentMap.keys();
+               while (it.hasNext()){
+                  String mType = it.next();
+                  JSONObject studentJson = studentMap.optJSONObject(mType);
+                  Student stud = new Student(studentJson);
+                  put(stud, false);
+                  debug("added "+stud.name+" : "+stud.toJsonString()+
+                        "\nstudents.size() is: " + students.size());
+               }
+               gen = log.startNewGeneration();
+            } finally {
+               version.incrementAndGet();
+               resetLock.writeLock().unlock();
+            }
+            fireChanged(null);
+            log.writeSnapshot(gen, students.values());
          }
       }catch (Exception ex){
          System.out.println("Exception reading json file: "+ex.getMessage());
@@ -70,29 +188,70 @@ class StudentCollectionImpl extends Object implements StudentCollection{
       return ret;
    }
 
+   /**
+    * Makes all changes since the last save durable. This only costs the log
+    * records written since then, the whole collection is only written when
+    * the log has grown large enough to be compacted into a new snapshot.
+    */
    public boolean saveToJsonFile() {
       boolean ret = true;
       try {
-         String jsonStr;
-         JSONObject obj = new JSONObject();
-         for (Enumeration<String> e = students.keys(); e.hasMoreElements();){
-            Student aStud = students.get((String)e.nextElement());
-            obj.put(aStud.name,aStud.toJson());
+         log.sync();
+         if (log.recordsSinceSnapshot() > Math.max(compactThreshold, students.size())) {
+            compact();
          }
-         PrintWriter out = new PrintWriter(studentJsonFileName);
-         out.println(obj.toString(2));
-         out.close();
       }catch(Exception ex){
+         System.out.println("Exception saving students: "+ex.getMessage());
          ret = false;
       }
       return ret;
    }
+
+   /**
+    * Writes a new snapshot and drops the logs it replaces. Updates are only
+    * held up while switching to a new log, not while the snapshot is written.
+    */
+   private void compact() throws IOException {
+      synchronized (compactLock) {
+         int gen;
+         resetLock.writeLock().lock();
+         try {
+            gen = log.startNewGeneration();
+         } finally {
+            resetLock.writeLock().unlock();
+         }
+         log.compact(gen);
+      }
+   }
    
    public boolean add(Student aStud) {
       boolean ret = true;
       debug("adding student named: "+((aStud==null)?"unknown":aStud.name));
       try{
-         students.put(aStud.name,aStud);
+         resetLock.readLock().lock();
+         try {
+            put(aStud, true);
+         } finally {
+            resetLock.readLock().unlock();
+         }
+      }catch(Exception ex){
+         ret = false;
+      }
+      return ret;
+   }
+
+   public boolean addAll(Student[] studs) {
+      boolean ret = true;
+      debug("adding "+studs.length+" students");
+      try{
+         resetLock.readLock().lock();
+         try {
+            for (int i=0; i<studs.length; i++){
+               put(studs[i], true);
+            }
+         } finally {
+            resetLock.readLock().unlock();
+         }
       }catch(Exception ex){
          ret = false;
       }
@@ -101,31 +260,108 @@ class StudentCollectionImpl extends Object implements StudentCollection{
 
    public boolean remove(String aName) {
       debug("removing student named: "+aName);
-      return ((students.remove(aName)==null)?false:true);
+      boolean[] removed = {false};
+      resetLock.readLock().lock();
+      try {
+         students.computeIfPresent(aName, (name, old) -> {
+            try {
+               log.logRemove(name);
+            } catch (IOException ex) {
+               throw new UncheckedIOException(ex);
+            }
+            index.remove(old);
+            removed[0] = true;
+            return null;
+         });
+      } catch (UncheckedIOException ex) {
+         System.out.println("Exception logging remove: "+ex.getMessage());
+      } finally {
+         resetLock.readLock().unlock();
+      }
+      if (removed[0]) {
+         version.incrementAndGet();
+         fireChanged(aName);
+      }
+      return removed[0];
+   }
+
+   /**
+    * Adds or replaces the student, the log, the table entry and the index are
+    * updated together while the map holds the lock for this student's bin,
+    * so the log has the updates of each student in the order they happened.
+    */
+   private void put(Student aStud, boolean logged) {
+      students.compute(aStud.name, (name, replaced) -> {
+         if (logged) {
+            try {
+               log.logAdd(aStud);
+            } catch (IOException ex) {
+               throw new UncheckedIOException(ex);
+            }
+         }
+         if (replaced != null) {
+            index.remove(replaced);
+         }
+         index.add(aStud);
+         return aStud;
+      });
+      version.incrementAndGet();
+      if (logged) {
+         fireChanged(aStud.name);
+      }
    }
 
+   /**
+    * Returns the cached names array as long as nothing changed since it was
+    * built, otherwise takes a new snapshot of the keys. Callers must not
+    * modify the returned array.
+    */
    public String[] getNames() {
-      String[] ret = {};
+      long current = version.get();
+      NamesSnapshot cached = namesCache.get();
+      if (cached != null && cached.version == current) {
+         return cached.names;
+      }
       debug("getting "+students.size()+" student names.");
-      if(students.size()>0){
-         ret = (String[])(students.keySet()).toArray(new String[0]);
+      String[] ret = students.keySet().toArray(new String[0]);
+      // only publish if no update happened while we were copying
+      if (version.get() == current) {
+         namesCache.compareAndSet(cached, new NamesSnapshot(current, ret));
       }
       return ret;
    }
    
    public String getNameById(int id) {
-      String ret = "unknown";
-      String[] keys = (String[])(students.keySet()).toArray(new String[0]);
-      for (int i=0; i< keys.length; i++){
-         Student aStud = students.get(keys[i]);
-         if (aStud.studentid==id){
-            ret = aStud.name;
-            break;
+      String ret = index.nameById(id);
+      return (ret == null) ? "unknown" : ret;
+   }
+
+   public String[] getNamesTaking(String course) {
+      return index.namesTaking(course);
+   }
+
+   public String[] getNamesTakingPrefix(String coursePrefix) {
+      return index.namesTakingPrefix(coursePrefix);
+   }
+   
+   /**
+    * One page of students sorted by name, starting after the cursor name.
+    * Pass an empty cursor for the first page and the name of the last student
+    * of a page to get the next one. Students added or removed between pages
+    * are seen or not depending on where they sort, no student is returned twice.
+    */
+   public Student[] list(String cursor, int limit) {
+      List<Student> page = new ArrayList<Student>(Math.max(0, Math.min(limit, 1024)));
+      Iterator<String> names = index.namesAfter(cursor).iterator();
+      while (page.size() < limit && names.hasNext()) {
+         Student stud = students.get(names.next());
+         if (stud != null) {
+            page.add(stud);
          }
       }
-      return ret;
+      return page.toArray(new Student[0]);
    }
-   
+
    public Student get(String aName) {
       Student ret = new Student("unknown",0,new String[]{"empty"});
       Student aStud = students.get(aName);
@@ -135,4 +371,16 @@ class StudentCollectionImpl extends Object implements StudentCollection{
       return ret;
    }
 
+   /**
+    * Names array together with the collection version it was built from
+    */
+   private static class NamesSnapshot {
+      final long version;
+      final String[] names;
+
+      NamesSnapshot(long version, String[] names){
+         this.version = version;
+         this.names = names;
+      }
+   }
 }
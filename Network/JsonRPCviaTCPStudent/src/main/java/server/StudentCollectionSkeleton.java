@@ -3,6 +3,7 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.stream.IntStream;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -21,66 +22,216 @@ public class StudentCollectionSkeleton extends Object {
    private static final boolean debugOn = false;
    StudentCollection studLib;
 
+   // methods that do not change the collection, batches of only these may run in parallel
+   private static final Set<String> readOnly = new HashSet<String>(
+      Arrays.asList("get","getNames","getNameById","getNamesTaking","getNamesTakingPrefix","list"));
+   private static final int defaultExportChunk = 500;
+   private boolean parallelBatches = true;
+
    public StudentCollectionSkeleton (StudentCollection studLib){
       this.studLib = studLib;
    }
 
+   /**
+    * Whether a batch made up only of read-only calls may be executed in parallel.
+    * Batches containing add or remove are always executed in order.
+    */
+   public void setParallelBatches(boolean parallelBatches){
+      this.parallelBatches = parallelBatches;
+   }
+
+   /**
+    * Where a streaming call writes its response frames
+    */
+   public interface FrameSink {
+      void send(JSONObject frame) throws IOException;
+   }
+
    private void debug(String message) {
       if (debugOn)
          System.out.println("debug: "+message);
    }
 
    public String callMethod(String request){
+      JSONObject theCall;
+      try{
+         theCall = new JSONObject(request);
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         return new JSONObject().toString();
+      }
+      return callMethod(theCall).toString();
+   }
+
+   /**
+    * Whether the call is answered with a stream of frames by callStreaming
+    * rather than a single response from callMethod.
+    */
+   public boolean isStreaming(JSONObject theCall){
+      return "export".equals(theCall.optString("method"));
+   }
+
+   /**
+    * Streams the whole collection, page by page, so neither side ever holds
+    * all students in one message. Each page is sent as a frame with the call
+    * id and a "stream" array of students, the last frame carries the usual
+    * "result", the number of students sent.
+    */
+   public void callStreaming(JSONObject theCall, FrameSink sink) throws IOException {
+      int id = theCall.optInt("id");
+      JSONArray params = theCall.optJSONArray("params");
+      int chunk = (params == null) ? defaultExportChunk : params.optInt(0, defaultExportChunk);
+      if (chunk <= 0) {
+         chunk = defaultExportChunk;
+      }
+      String cursor = "";
+      int count = 0;
+      Student[] page;
+      do {
+         page = studLib.list(cursor, chunk);
+         if (page.length > 0) {
+            JSONArray studsJson = new JSONArray();
+            for (Student stud : page) {
+               studsJson.put(stud.toJson());
+            }
+            JSONObject frame = new JSONObject();
+            frame.put("id",id);
+            frame.put("jsonrpc","2.0");
+            frame.put("stream",studsJson);
+            sink.send(frame);
+            count += page.length;
+            cursor = page[page.length-1].name;
+         }
+      } while (page.length == chunk);
+      debug("exported "+count+" students");
+      JSONObject result = new JSONObject();
+      result.put("id",id);
+      result.put("jsonrpc","2.0");
+      result.put("result",count);
+      sink.send(result);
+   }
+
+   /**
+    * Executes a JSON-RPC 2.0 batch, the response array holds one response
+    * per call that has an id, in the order of the calls. It is empty when
+    * every call is a notification, the server then sends no response at all.
+    */
+   public JSONArray callBatch(JSONArray calls){
+      JSONArray results = new JSONArray();
+      if (calls.length() == 0) {
+         return results;
+      }
+      boolean parallel = parallelBatches;
+      for (int i=0; i<calls.length() && parallel; i++){
+         JSONObject theCall = calls.optJSONObject(i);
+         parallel = theCall != null && readOnly.contains(theCall.optString("method"));
+      }
+      debug("executing batch of "+calls.length()+(parallel?" in parallel":" in order"));
+      JSONObject[] responses = new JSONObject[calls.length()];
+      IntStream indexes = IntStream.range(0, calls.length());
+      if (parallel) {
+         indexes = indexes.parallel();
+      }
+      indexes.forEach(i -> {
+         JSONObject theCall = calls.optJSONObject(i);
+         if (theCall != null) {
+            responses[i] = callMethod(theCall);
+         }
+      });
+      for (int i=0; i<responses.length; i++){
+         // calls without an id are notifications and get no response
+         if (responses[i] != null && responses[i].has("id")) {
+            results.put(responses[i]);
+         }
+      }
+      return results;
+   }
+
+   public JSONObject callMethod(JSONObject theCall){
       JSONObject result = new JSONObject();
       try{
-         JSONObject theCall = new JSONObject(request);
-         debug("Request is: "+theCall.toString());
+         if (debugOn)
+            debug("Request is: "+theCall.toString());
          String method = theCall.getString("method");
-         int id = theCall.getInt("id");
-         JSONArray params = null;
-         if(!theCall.isNull("params")){
-            params = theCall.getJSONArray("params");
+         JSONArray params = theCall.optJSONArray("params");
+         // a notification has no id, it is executed but its response is dropped
+         if (theCall.has("id")) {
+            result.put("id",theCall.getInt("id"));
          }
-         result.put("id",id);
          result.put("jsonrpc","2.0");
-         if(method.equals("add")){
-            JSONObject studJson = params.getJSONObject(0);
-            Student studToAdd = new Student(studJson);
-            debug("adding stud: "+studToAdd.toJsonString());
-            studLib.add(studToAdd);
-            result.put("result",true);
-         }else if(method.equals("remove")){
-            String studName = params.getString(0);
-            debug("removing student named "+studName);
-            studLib.remove(studName);
+         // a switch on a String is compiled to a switch on its hash code,
+         // so the cost of matching the method does not grow with each new method
+         switch (method) {
+         case "add":
+            result.put("result",studLib.add(new Student(params.getJSONObject(0))));
+            break;
+         case "addAll": {
+            JSONArray studsJson = params.getJSONArray(0);
+            Student[] studsToAdd = new Student[studsJson.length()];
+            for (int i=0; i<studsToAdd.length; i++){
+               studsToAdd[i] = new Student(studsJson.getJSONObject(i));
+            }
+            debug("adding "+studsToAdd.length+" students");
+            result.put("result",studLib.addAll(studsToAdd));
+            break;
+         }
+         case "remove":
+            debug("removing student named "+params.getString(0));
+            studLib.remove(params.getString(0));
             result.put("result",true);
-         }else if(method.equals("getNameById")){
-            int studNum = params.getInt(0);
-            debug("getNameById for student number "+studNum);
-            String name = studLib.getNameById(studNum);
-            result.put("result",name);
-         }else if(method.equals("get")){
-            String studName = params.getString(0);
-            Student stud = studLib.get(studName);
-            JSONObject studJson = stud.toJson();
-            debug("get request found: "+studJson.toString());
-            result.put("result",studJson);
-         }else if(method.equals("getNames")){
-            String[] names = studLib.getNames();
-            JSONArray resArr = new JSONArray();
-            for (int i=0; i<names.length; i++){
-               resArr.put(names[i]);
+            break;
+         case "getNameById":
+            result.put("result",studLib.getNameById(params.getInt(0)));
+            break;
+         case "get":
+            result.put("result",studLib.get(params.getString(0)).toJson());
+            break;
+         case "getNames":
+            result.put("result",namesArray(studLib.getNames()));
+            break;
+         case "getNamesTaking":
+            result.put("result",namesArray(studLib.getNamesTaking(params.getString(0))));
+            break;
+         case "getNamesTakingPrefix":
+            result.put("result",namesArray(studLib.getNamesTakingPrefix(params.getString(0))));
+            break;
+         case "list": {
+            Student[] page = studLib.list(params.optString(0,""), params.optInt(1,100));
+            JSONArray studsJson = new JSONArray();
+            for (Student stud : page) {
+               studsJson.put(stud.toJson());
+            }
+            JSONObject res = new JSONObject();
+            res.put("students",studsJson);
+            if (page.length > 0) {
+               res.put("next",page[page.length-1].name);
             }
-            debug("getNames request found: "+resArr.toString());
-            result.put("result",resArr);
-         }else{
+            result.put("result",res);
+            break;
+         }
+         case "saveToJsonFile":
+            result.put("result",studLib.saveToJsonFile());
+            break;
+         case "resetFromJsonFile":
+            result.put("result",studLib.resetFromJsonFile());
+            break;
+         default:
             debug("Unable to match method: "+method+". Returning 0.");
             result.put("result",0.0);
          }
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
-      return result.toString();
+      return result;
+   }
+
+   // the names one by one, so any version of org.json builds the same array
+   private static JSONArray namesArray(String[] names) {
+      JSONArray resArr = new JSONArray();
+      for (int i=0; i<names.length; i++){
+         resArr.put(names[i]);
+      }
+      return resArr;
    }
 }
 
@@ -2,79 +2,698 @@ package server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
+ * Connections are served by a bounded pool of worker threads. A connection
+ * only holds a worker while it has requests to answer, once its client goes
+ * quiet it is handed to the idle selector thread, which gives it back to a
+ * worker when the next request arrives and closes it after the idle timeout.
+ * When all workers are busy requests wait in a bounded queue, and once that
+ * is full too the connection is turned away with an error instead of piling up.
+ * The number of open connections is capped as well, parked ones included.
  *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
  *         Software Engineering, CIDSE, IAFSE, ASU Poly
  * @version April 2020
  */
-public class StudentCollectionTCPJsonRPCServer extends Thread {
+public class StudentCollectionTCPJsonRPCServer implements Runnable {
+   private static final int defaultWorkers = 50;
+   private static final int defaultQueueLimit = 100;
+   private static final int defaultReadTimeoutSecs = 300;
+   private static final int defaultMaxConnections = 1000;
+   // longest pause before accepting again after accept failed
+   private static final long maxAcceptBackoff = 1000;
+
+   // metrics, shared by all connections
+   private static AtomicInteger activeConnections = new AtomicInteger();
+   private static AtomicLong acceptedConnections = new AtomicLong();
+   private static AtomicLong rejectedConnections = new AtomicLong();
+
+   // connections that asked to be told when students change, see changed()
+   private static Set<StudentCollectionTCPJsonRPCServer> subscribers =
+      ConcurrentHashMap.newKeySet();
+   private static BlockingQueue<String> changedNames = new LinkedBlockingQueue<String>();
+   private static final int maxNamesPerInvalidation = 1000;
+   // a subscriber with more notification bytes waiting than this is dropped
+   private static final long maxQueuedNotificationBytes = 4*1024*1024;
+   private static Thread notifier;
+
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
+   // the serve() call that accepted the connection, null if it runs on a thread of its own
+   private Listener listener;
+   // written by this connection's worker and its notification writer, always lock it
+   private DataOutputStream outSock;
+   private DataInputStream inSock;
+   private ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream();
+   // when the connection was last handed to the idle selector
+   private long idleSince;
+   private AtomicBoolean closed = new AtomicBoolean();
+   // notification frames not yet written, only set once subscribed
+   private volatile BlockingQueue<ByteBuffer> notifications;
+   private AtomicLong queuedBytes = new AtomicLong();
 
    public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
                                              StudentCollection stdCol) {
+      this(sock, id, new StudentCollectionSkeleton(stdCol));
+   }
+
+   public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
+                                             StudentCollectionSkeleton skeleton) {
+      this(sock, id, skeleton, null);
+   }
+
+   private StudentCollectionTCPJsonRPCServer (Socket sock, int id,
+                                              StudentCollectionSkeleton skeleton,
+                                              Listener listener) {
       this.conn = sock;
       this.id = id;
-      skeleton = new StudentCollectionSkeleton(stdCol);
+      this.skeleton = skeleton;
+      this.listener = listener;
+      activeConnections.incrementAndGet();
+   }
+
+   /**
+    * Current server metrics, also available to clients as the serverStats call.
+    * Idle, queued and busy counts are those of the serve() call that accepted
+    * this connection.
+    */
+   private JSONObject stats() {
+      ThreadPoolExecutor workers = (listener == null) ? null : listener.workers;
+      JSONObject ret = new JSONObject();
+      ret.put("activeConnections", activeConnections.get());
+      ret.put("idleConnections", (listener == null) ? 0 : listener.idleConnections.get());
+      ret.put("acceptedConnections", acceptedConnections.get());
+      ret.put("rejectedConnections", rejectedConnections.get());
+      ret.put("queuedConnections", (workers == null) ? 0 : workers.getQueue().size());
+      ret.put("busyWorkers", (workers == null) ? 0 : workers.getActiveCount());
+      return ret;
+   }
+
+   /**
+    * Called by the collection whenever a student is added, replaced or
+    * removed, with null when the whole collection was reset. Subscribed
+    * clients are sent an invalidate notification through the notifier
+    * thread, so a slow client never holds up the update itself.
+    */
+   public static void changed(String name) {
+      changedNames.add((name == null) ? "*" : name);
+   }
+
+   /**
+    * Starts the thread that sends invalidate notifications to subscribers.
+    * Names that changed since the last notification are sent together, and
+    * if there are too many the clients are told to drop everything ("*").
+    * The notifier only queues the frame for each subscriber, so one client
+    * that stops reading does not hold up the others.
+    */
+   public static synchronized void startNotifier() {
+      if (notifier != null) {
+         return;
+      }
+      notifier = new Thread(() -> {
+         List<String> names = new ArrayList<String>();
+         ByteArrayOutputStream frame = new ByteArrayOutputStream();
+         ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream();
+         while (true) {
+            try {
+               names.add(changedNames.take());
+            } catch (InterruptedException e) {
+               return;
+            }
+            changedNames.drainTo(names);
+            if (subscribers.isEmpty()) {
+               names.clear();
+               continue;
+            }
+            JSONArray params = new JSONArray();
+            if (names.size() > maxNamesPerInvalidation || names.contains("*")) {
+               params.put("*");
+            } else {
+               for (String name : names) {
+                  params.put(name);
+               }
+            }
+            names.clear();
+            JSONObject notification = new JSONObject();
+            notification.put("jsonrpc","2.0");
+            notification.put("method","invalidate");
+            notification.put("params",params);
+            // framed once, every subscriber gets its own buffer over the same bytes
+            frame.reset();
+            try {
+               JsonFraming.write(new DataOutputStream(frame), notification, frameBuffer);
+            } catch (IOException e) {
+               continue; // writing to memory does not fail
+            }
+            byte[] bytes = frame.toByteArray();
+            for (StudentCollectionTCPJsonRPCServer sub : subscribers) {
+               sub.queueNotification(bytes);
+            }
+         }
+      }, "invalidation notifier");
+      notifier.setDaemon(true);
+      notifier.start();
+   }
+
+   /**
+    * Queues a notification frame without waiting on the client. A subscriber
+    * that lets more than maxQueuedNotificationBytes pile up is closed rather
+    * than just unsubscribed, so its client knows it missed invalidations.
+    */
+   private void queueNotification(byte[] frame) {
+      BlockingQueue<ByteBuffer> queue = notifications;
+      if (queue == null) {
+         return;
+      }
+      // only the notifier adds, so nobody else can push the total past the limit
+      long behind = queuedBytes.get();
+      if (behind > 0 && behind + frame.length > maxQueuedNotificationBytes) {
+         System.out.println("Dropping subscriber "+id+", it is "+behind+
+                            " bytes of notifications behind");
+         closeConnection();
+         return;
+      }
+      queuedBytes.addAndGet(frame.length);
+      queue.add(ByteBuffer.wrap(frame));
+      if (listener != null) {
+         // written by the idle selector if the connection is parked,
+         // otherwise by its worker ahead of the next response
+         listener.toWrite.add(this);
+         listener.idleSelector.wakeup();
+      }
+   }
+
+   /**
+    * Subscribes the connection to invalidations. A connection that was not
+    * accepted by serve() is never parked, it gets a thread that writes its
+    * notifications.
+    */
+   private void subscribe() {
+      if (notifications == null) {
+         notifications = new LinkedBlockingQueue<ByteBuffer>();
+         if (listener == null) {
+            Thread writer = new Thread(this::forwardNotifications, "notifications "+id);
+            writer.setDaemon(true);
+            writer.start();
+         }
+      }
+      subscribers.add(this);
+   }
+
+   private void forwardNotifications() {
+      try {
+         while (!closed.get()) {
+            ByteBuffer frame = notifications.poll(1, TimeUnit.SECONDS);
+            if (frame != null) {
+               synchronized (outSock) {
+                  outSock.write(frame.array(), frame.position(), frame.remaining());
+                  outSock.flush();
+               }
+               queuedBytes.addAndGet(-frame.limit());
+            }
+         }
+      } catch (InterruptedException e) {
+         // shutting down
+      } catch (IOException e) {
+         closeConnection();
+      }
+   }
+
+   /**
+    * Writes the notifications queued while the worker had the connection,
+    * the caller holds the outSock lock.
+    */
+   private void writeNotifications() throws IOException {
+      BlockingQueue<ByteBuffer> queue = notifications;
+      if (queue == null || listener == null) {
+         return;
+      }
+      ByteBuffer frame;
+      while ((frame = queue.peek()) != null) {
+         // the idle selector may have written part of it already
+         outSock.write(frame.array(), frame.position(), frame.remaining());
+         queue.poll();
+         queuedBytes.addAndGet(-frame.limit());
+      }
+   }
+
+   private boolean hasQueuedNotifications() {
+      BlockingQueue<ByteBuffer> queue = notifications;
+      return queue != null && !queue.isEmpty();
+   }
+
+   /**
+    * Writes the queued notifications of a parked connection as far as the
+    * socket takes them without blocking, on the idle selector thread.
+    */
+   private void writeParked(SelectionKey key) {
+      try {
+         ByteBuffer frame;
+         while ((frame = notifications.peek()) != null) {
+            conn.getChannel().write(frame);
+            if (frame.hasRemaining()) {
+               return; // socket is full, wait until it is writable again
+            }
+            notifications.poll();
+            queuedBytes.addAndGet(-frame.limit());
+         }
+         key.interestOps(SelectionKey.OP_READ);
+      } catch (IOException e) {
+         closeConnection();
+      }
+   }
+
+   private void send(Object frame, boolean flush) throws IOException {
+      synchronized (outSock) {
+         writeNotifications();
+         JsonFraming.write(outSock, frame, frameBuffer);
+         if (flush) {
+            outSock.flush();
+         }
+      }
    }
 
    public void run() {
-      // setup connection
+      boolean parked = false;
       try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+         if (outSock == null) {
+            // first request, the connection stays open for as many calls as the client makes
+            outSock = new DataOutputStream(
+               new BufferedOutputStream(conn.getOutputStream()));
+            inSock = new DataInputStream(
+               new BufferedInputStream(conn.getInputStream()));
+            conn.setTcpNoDelay(true);
+         }
+         while (true) {
+            // receive request, a 4 byte length followed by the json text
+            Object request = JsonFraming.read(inSock);
+            if (request == null) {
+               break; // client closed the connection
+            }
+            System.out.println("request is: "+JsonFraming.abbreviate(request));
 
             // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+            if (request instanceof JSONObject && skeleton.isStreaming((JSONObject)request)) {
+               // streamed responses write and flush their own frames
+               skeleton.callStreaming((JSONObject)request, frame -> send(frame, true));
+            } else {
+               Object response;
+               if (request instanceof JSONObject &&
+                   "subscribeInvalidations".equals(((JSONObject)request).optString("method"))) {
+                  subscribe();
+                  response = resultResponse((JSONObject)request, true);
+               } else if (request instanceof JSONObject &&
+                   "serverStats".equals(((JSONObject)request).optString("method"))) {
+                  response = resultResponse((JSONObject)request, stats());
+               } else if (request instanceof JSONObject) {
+                  response = skeleton.callMethod((JSONObject)request);
+               } else if (request instanceof JSONArray && ((JSONArray)request).length() == 0) {
+                  response = errorResponse(-32600, "Invalid Request: empty batch");
+               } else if (request instanceof JSONArray) {
+                  response = skeleton.callBatch((JSONArray)request);
+                  if (((JSONArray)response).length() == 0) {
+                     response = null; // only notifications, JSON-RPC 2.0 answers nothing
+                  }
+               } else {
+                  response = new JSONObject();
+                  System.out.println("request is not a json object or batch, ignoring it");
+               }
+               // only flush once all pipelined requests already here are answered
+               if (response != null) {
+                  send(response, inSock.available() == 0);
+                  System.out.println("response is: "+JsonFraming.abbreviate(response));
+               } else if (inSock.available() == 0) {
+                  synchronized (outSock) {
+                     outSock.flush();
+                  }
+               }
+            }
+            // nothing more to answer, give the worker back until the client sends again
+            if (listener != null && inSock.available() == 0) {
+               synchronized (outSock) {
+                  writeNotifications();
+                  outSock.flush();
+               }
+               parked = true;
+               listener.park(this);
+               return;
+            }
+         }
+         synchronized (outSock) {
+            outSock.flush();
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
+      } catch (SocketTimeoutException e) {
+         System.out.println("Closing idle connection "+id);
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } finally {
+         if (!parked) {
+            closeConnection();
+         }
+      }
+   }
+
+   /**
+    * The state of one serve() call: its workers, the idle selector its
+    * connections wait on between requests and its limits. Several serve()
+    * calls in one JVM each have their own.
+    */
+   private static class Listener {
+      private final ThreadPoolExecutor workers;
+      private final Selector idleSelector;
+      private final long idleTimeout;
+      // connections waiting for their client's next request, see park()
+      private final Queue<StudentCollectionTCPJsonRPCServer> toPark =
+         new ConcurrentLinkedQueue<StudentCollectionTCPJsonRPCServer>();
+      // parked connections with notifications to write
+      private final Queue<StudentCollectionTCPJsonRPCServer> toWrite =
+         new ConcurrentLinkedQueue<StudentCollectionTCPJsonRPCServer>();
+      // open connections accepted by this listener, parked or not
+      private final AtomicInteger connections = new AtomicInteger();
+      private final AtomicInteger idleConnections = new AtomicInteger();
+      private volatile boolean stopped = false;
+
+      private Listener(ThreadPoolExecutor workers, Selector idleSelector, long idleTimeout) {
+         this.workers = workers;
+         this.idleSelector = idleSelector;
+         this.idleTimeout = idleTimeout;
+      }
+
+      /**
+       * Hands the connection to the idle selector, which waits for the client's
+       * next request without holding a worker.
+       */
+      private void park(StudentCollectionTCPJsonRPCServer c) {
+         if (stopped) {
+            c.closeConnection();
+            return;
+         }
+         c.idleSince = System.currentTimeMillis();
+         toPark.add(c);
+         idleSelector.wakeup();
+      }
+
+      /**
+       * Lets the idle selector close the parked connections and itself
+       */
+      private void stop() {
+         stopped = true;
+         idleSelector.wakeup();
+      }
+
+      /**
+       * Run by the idle selector thread. A parked connection whose client sent
+       * something, or closed it, goes back to the workers, one that stayed quiet
+       * longer than the idle timeout is closed.
+       */
+      private void watchIdle() {
+         Selector selector = idleSelector;
+         long lastSweep = System.currentTimeMillis();
+         while (true) {
+            List<StudentCollectionTCPJsonRPCServer> ready =
+               new ArrayList<StudentCollectionTCPJsonRPCServer>();
+            try {
+               selector.select(1000);
+               StudentCollectionTCPJsonRPCServer c;
+               if (stopped) {
+                  while ((c = toPark.poll()) != null) {
+                     c.closeConnection();
+                  }
+                  for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                     ((StudentCollectionTCPJsonRPCServer)key.attachment()).closeConnection();
+                  }
+                  selector.close();
+                  return;
+               }
+               while ((c = toPark.poll()) != null) {
+                  try {
+                     int ops = SelectionKey.OP_READ;
+                     if (c.hasQueuedNotifications()) {
+                        // queued after the worker's last write
+                        ops |= SelectionKey.OP_WRITE;
+                     }
+                     c.conn.getChannel().configureBlocking(false);
+                     c.conn.getChannel().register(selector, ops, c);
+                  } catch (IOException e) {
+                     c.closeConnection();
+                  }
+               }
+               while ((c = toWrite.poll()) != null) {
+                  SelectionKey key = c.conn.getChannel().keyFor(selector);
+                  if (key != null && key.isValid() && c.hasQueuedNotifications()) {
+                     key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                  }
+               }
+               // a channel can only go back to blocking mode for a worker once
+               // its cancelled key was flushed out by another select
+               while (!selector.selectedKeys().isEmpty()) {
+                  for (SelectionKey key : selector.selectedKeys()) {
+                     c = (StudentCollectionTCPJsonRPCServer)key.attachment();
+                     if (key.isValid() && key.isWritable()) {
+                        c.writeParked(key);
+                     }
+                     if (key.isValid() && key.isReadable()) {
+                        key.cancel();
+                        ready.add(c);
+                     }
+                  }
+                  selector.selectedKeys().clear();
+                  selector.selectNow();
+               }
+               long now = System.currentTimeMillis();
+               if (now - lastSweep >= 1000) {
+                  lastSweep = now;
+                  for (SelectionKey key : selector.keys()) {
+                     c = (StudentCollectionTCPJsonRPCServer)key.attachment();
+                     if (key.isValid() && now - c.idleSince > idleTimeout) {
+                        System.out.println("Closing idle connection "+c.id);
+                        c.closeConnection();
+                     }
+                  }
+               }
+               idleConnections.set(selector.keys().size());
+            } catch (ClosedSelectorException e) {
+               return;
+            } catch (IOException e) {
+               System.out.println("I/O exception in the idle selector: "+e.getMessage());
+            }
+            for (StudentCollectionTCPJsonRPCServer c : ready) {
+               dispatch(c);
+            }
+         }
+      }
+
+      /**
+       * Gives a connection with a request waiting to the next free worker
+       */
+      private void dispatch(StudentCollectionTCPJsonRPCServer c) {
+         try {
+            c.conn.getChannel().configureBlocking(true);
+            workers.execute(c);
+         } catch (RejectedExecutionException e) {
+            System.out.println("Student server busy, rejecting client "+c.id+" "+c.stats());
+            reject(c.conn);
+            c.closeConnection();
+         } catch (IOException e) {
+            c.closeConnection();
+         }
+      }
+   }
+
+   private void closeConnection() {
+      if (closed.compareAndSet(false, true)) {
+         subscribers.remove(this);
+         activeConnections.decrementAndGet();
+         if (listener != null) {
+            listener.connections.decrementAndGet();
+         }
+         close(conn);
       }
    }
+
+   /**
+    * Response for the calls the server answers itself rather than the skeleton
+    */
+   private JSONObject resultResponse(JSONObject theCall, Object value) {
+      JSONObject result = new JSONObject();
+      result.put("id",theCall.optInt("id"));
+      result.put("jsonrpc","2.0");
+      result.put("result",value);
+      return result;
+   }
+
+   /**
+    * An error that belongs to no call, its id is null
+    */
+   private static JSONObject errorResponse(int code, String message) {
+      JSONObject error = new JSONObject();
+      error.put("code",code);
+      error.put("message",message);
+      JSONObject response = new JSONObject();
+      response.put("jsonrpc","2.0");
+      response.put("id",JSONObject.NULL);
+      response.put("error",error);
+      return response;
+   }
+
+   private static void close(Socket sock) {
+      try {
+         sock.close();
+      } catch (IOException e) {
+         // already closed
+      }
+   }
+
+   /**
+    * Turns a connection away when the server is full, the client gets a
+    * json-rpc error instead of waiting on a connection nobody will serve.
+    */
+   private static void reject(Socket sock) {
+      rejectedConnections.incrementAndGet();
+      try {
+         sock.setSoTimeout(1000);
+         JSONObject response = errorResponse(-32000, "server busy, try again later");
+         DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+         JsonFraming.write(out, response, new ByteArrayOutputStream());
+         out.flush();
+      } catch (IOException e) {
+         // client is gone already
+      }
+      close(sock);
+   }
     
+   /**
+    * Accepts connections on the channel until it is closed, with at most
+    * defaultMaxConnections open at once.
+    * @param readTimeout milliseconds a connection may stay idle, or take to
+    *                    send the rest of a request
+    */
+   public static void serve(ServerSocketChannel serv, StudentCollectionSkeleton skeleton,
+                            int maxWorkers, int queueLimit, int readTimeout)
+      throws IOException {
+      serve(serv, skeleton, maxWorkers, queueLimit, readTimeout, defaultMaxConnections);
+   }
+
+   /**
+    * Accepts connections on the channel until it is closed. A new connection
+    * starts out idle, it only gets a worker once its client sends a request.
+    * If accept fails (out of file descriptors, say) the error is logged and
+    * accepting starts again after a pause that grows while it keeps failing.
+    * @param readTimeout milliseconds a connection may stay idle, or take to
+    *                    send the rest of a request
+    * @param maxConnections open connections at most, parked ones included,
+    *                       the ones beyond get the server busy error
+    */
+   public static void serve(ServerSocketChannel serv, StudentCollectionSkeleton skeleton,
+                            int maxWorkers, int queueLimit, int readTimeout,
+                            int maxConnections)
+      throws IOException {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                                                       new ArrayBlockingQueue<Runnable>(queueLimit));
+      pool.allowCoreThreadTimeOut(true);
+      Listener listener = new Listener(pool, Selector.open(), readTimeout);
+      Thread watcher = new Thread(listener::watchIdle, "idle connections");
+      watcher.setDaemon(true);
+      watcher.start();
+      int id = 0;
+      long backoff = 0;
+      try {
+         // accept client connections, each is parked until its first request arrives
+         while (true) {
+            SocketChannel channel;
+            try {
+               channel = serv.accept();
+               backoff = 0;
+            } catch (ClosedChannelException e) {
+               throw e; // the server was shut down
+            } catch (IOException e) {
+               backoff = Math.min(Math.max(2*backoff, 10), maxAcceptBackoff);
+               System.out.println("Accepting a connection failed, trying again in "+
+                                  backoff+" ms: "+e.getMessage());
+               try {
+                  Thread.sleep(backoff);
+               } catch (InterruptedException ie) {
+                  throw new InterruptedIOException("interrupted while accepting");
+               }
+               continue;
+            }
+            acceptedConnections.incrementAndGet();
+            Socket sock = channel.socket();
+            // only this thread adds connections, so the count cannot pass the cap
+            if (listener.connections.get() >= maxConnections) {
+               System.out.println("Student server has "+maxConnections+
+                                  " connections open, rejecting a new one");
+               reject(sock);
+               continue;
+            }
+            try {
+               sock.setSoTimeout(readTimeout);
+            } catch (IOException e) {
+               close(sock);
+               continue;
+            }
+            listener.connections.incrementAndGet();
+            StudentCollectionTCPJsonRPCServer c =
+               new StudentCollectionTCPJsonRPCServer(sock, id++, skeleton, listener);
+            System.out.println("Student server connected to client: "+c.id+" "+c.stats());
+            listener.park(c);
+         }
+      } finally {
+         listener.stop();
+         pool.shutdown();
+      }
+   }
+
    public static void main (String args[]) {
-      Socket sock;
-      StudentCollection studCol = new StudentCollectionImpl();
-      int id=0;
+      StudentCollectionImpl studCol = new StudentCollectionImpl();
+      studCol.addChangeListener(StudentCollectionTCPJsonRPCServer::changed);
+      startNotifier();
+      // the skeleton holds no per connection state, so all connections share one
+      StudentCollectionSkeleton skeleton = new StudentCollectionSkeleton(studCol);
       try {
-         if (args.length != 1) {
-            System.out.println("Expected Arguments: <port(int)>");
+         if (args.length < 1 || args.length > 5) {
+            System.out.println("Expected Arguments: <port(int)> [workers(int)] "+
+                               "[queueLimit(int)] [readTimeoutSecs(int)] [maxConnections(int)]");
             System.exit(0);
          }
          int portNo = Integer.parseInt(args[0]);
          if (portNo <= 1024) portNo=8888;
-         ServerSocket serv = new ServerSocket(portNo);
-         // accept client requests. For each request create a new thread to handle
-         while (true) { 
-            System.out.println("Student server waiting for connects on port "
-                               +portNo);
-            sock = serv.accept();
-            System.out.println("Student server connected to client: "+id);
-            StudentCollectionTCPJsonRPCServer myServerThread =
-               new StudentCollectionTCPJsonRPCServer(sock,id++,studCol);
-            myServerThread.start();
-         }
+         int maxWorkers = (args.length > 1) ? Integer.parseInt(args[1]) : defaultWorkers;
+         int queueLimit = (args.length > 2) ? Integer.parseInt(args[2]) : defaultQueueLimit;
+         int readTimeout = 1000 *
+            ((args.length > 3) ? Integer.parseInt(args[3]) : defaultReadTimeoutSecs);
+         int maxConnections = (args.length > 4) ? Integer.parseInt(args[4]) : defaultMaxConnections;
+         ServerSocketChannel serv = ServerSocketChannel.open();
+         serv.bind(new InetSocketAddress(portNo), queueLimit);
+         System.out.println("Student server waiting for connects on port "+portNo+
+                            " with "+maxWorkers+" workers");
+         serve(serv, skeleton, maxWorkers, queueLimit, readTimeout, maxConnections);
       } catch(Exception e) {e.printStackTrace();}
    }
 }
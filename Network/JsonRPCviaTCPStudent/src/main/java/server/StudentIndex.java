@@ -0,0 +1,114 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Purpose: Secondary indexes over the student collection, so looking up a
+ * student by id or by course, or paging through students by name, does not
+ * need to scan every student.
+ * All maps are concurrent so lookups never take a lock. Updates for one
+ * student are done by StudentCollectionImpl while it atomically updates
+ * that student's entry in the student table.
+ *
+ * Ser321 Distributed Apps
+ * @author Tim Lindquist Tim.Lindquist@asu.edu
+ *         Software Engineering, CIDSE, IAFSE, ASU Poly
+ * @version April 2020
+ */
+class StudentIndex extends Object {
+
+   // several students may share an id, the one added first is reported.
+   // The arrays are never changed once published, updates replace them.
+   private Map<Integer,String[]> byId = new ConcurrentHashMap<Integer,String[]>();
+   private Map<String,Set<String>> byCourse = new ConcurrentHashMap<String,Set<String>>();
+   // all names in sorted order, so the collection can be paged through by name
+   private NavigableSet<String> sortedNames = new ConcurrentSkipListSet<String>();
+
+   public void add(Student stud) {
+      byId.compute(stud.studentid, (id, names) -> {
+         if (names == null) {
+            return new String[]{stud.name};
+         }
+         String[] ret = Arrays.copyOf(names, names.length+1);
+         ret[names.length] = stud.name;
+         return ret;
+      });
+      sortedNames.add(stud.name);
+      // add inside compute, a remove emptying the set could otherwise drop
+      // it from the map between getting the set and adding to it
+      for (String course : stud.takes) {
+         byCourse.compute(course, (c, names) -> {
+            Set<String> ret = (names == null) ? ConcurrentHashMap.<String>newKeySet() : names;
+            ret.add(stud.name);
+            return ret;
+         });
+      }
+   }
+
+   public void remove(Student stud) {
+      byId.computeIfPresent(stud.studentid, (id, names) -> {
+         String[] ret = new String[names.length];
+         int n = 0;
+         for (String name : names) {
+            if (!name.equals(stud.name)) {
+               ret[n++] = name;
+            }
+         }
+         return (n == 0) ? null : Arrays.copyOf(ret, n);
+      });
+      sortedNames.remove(stud.name);
+      for (String course : stud.takes) {
+         byCourse.computeIfPresent(course, (c, names) -> {
+            names.remove(stud.name);
+            return names.isEmpty() ? null : names;
+         });
+      }
+   }
+
+   public void clear() {
+      byId.clear();
+      byCourse.clear();
+      sortedNames.clear();
+   }
+
+   /**
+    * @return name of a student with this id or null if there is none
+    */
+   public String nameById(int id) {
+      String[] names = byId.get(id);
+      return (names == null) ? null : names[0];
+   }
+
+   /**
+    * Sorted view of the names following the cursor name. The view is live,
+    * iterating it sees some or all changes made after it was obtained.
+    */
+   public NavigableSet<String> namesAfter(String cursor) {
+      return sortedNames.tailSet(cursor, false);
+   }
+
+   public String[] namesTaking(String course) {
+      Set<String> names = byCourse.get(course);
+      return (names == null) ? new String[0] : names.toArray(new String[0]);
+   }
+
+   /**
+    * Names of students taking any course starting with the prefix, sorted.
+    * There are few courses compared to students, so checking every course is cheap.
+    */
+   public String[] namesTakingPrefix(String prefix) {
+      Set<String> ret = new TreeSet<String>();
+      for (Map.Entry<String,Set<String>> entry : byCourse.entrySet()) {
+         if (entry.getKey().startsWith(prefix)) {
+            ret.addAll(entry.getValue());
+         }
+      }
+      return ret.toArray(new String[0]);
+   }
+}
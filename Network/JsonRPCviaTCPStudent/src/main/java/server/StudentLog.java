@@ -0,0 +1,419 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Purpose: Durable storage for the student collection as an append-only
+ * write-ahead log of add and remove operations plus a compacted binary
+ * snapshot. Saving only has to make the log records written since the last
+ * save durable, instead of rewriting the whole collection.
+ *
+ * Logs are numbered by generation (students.GEN.log). Taking a snapshot
+ * first starts a new generation, then writes all students to
+ * students.snapshot along with that generation number. Recovery loads the
+ * snapshot and replays every log of that generation or later. Replaying an
+ * add or remove twice has the same effect as once, so a snapshot may be
+ * taken while updates keep going into the new log.
+ *
+ * Every log record is its length, the record bytes and a CRC32, a record
+ * torn by a crash fails the check and is cut off during recovery.
+ *
+ * The log remembers how far it reached at the last sync, the saved mark.
+ * restoreSaved goes back to that state, dropping the records written since.
+ * A snapshot is built from the snapshot and logs before its generation
+ * rather than from the live collection, so it never holds unsaved changes.
+ *
+ * Ser321 Distributed Apps
+ * @author Tim Lindquist Tim.Lindquist@asu.edu
+ *         Software Engineering, CIDSE, IAFSE, ASU Poly
+ * @version April 2020
+ */
+class StudentLog extends Object {
+
+   /**
+    * When log records are forced to disk.
+    * ALWAYS forces every record before the update is applied,
+    * ON_SAVE hands every record to the OS right away and forces on saveToJsonFile,
+    * NEVER leaves both to the OS and the buffer size.
+    */
+   public enum FsyncPolicy { ALWAYS, ON_SAVE, NEVER }
+
+   private static final boolean debugOn = false;
+   private static final int SNAPSHOT_MAGIC = 0x53545544; // "STUD"
+   private static final int SNAPSHOT_VERSION = 1;
+   private static final byte OP_ADD = 'A';
+   private static final byte OP_REMOVE = 'R';
+   // no student comes near this, a longer record can only be a torn length
+   private static final int maxRecordLength = 256*1024*1024;
+
+   private File dir;
+   private FsyncPolicy policy;
+   private int generation = 0;
+   private FileOutputStream logFile;
+   private DataOutputStream logOut;
+   private long recordsSinceSnapshot = 0;
+   // bytes in the current generation's log
+   private long written = 0;
+   // how far the log reached at the last sync
+   private int savedGeneration = 0;
+   private long savedLength = 0;
+   private ByteArrayOutputStream record = new ByteArrayOutputStream();
+   private DataOutputStream recordOut = new DataOutputStream(record);
+   private CRC32 crc = new CRC32();
+
+   public StudentLog(File dir, FsyncPolicy policy) {
+      this.dir = dir;
+      this.policy = policy;
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   private File logFile(int gen) {
+      return new File(dir, "students."+gen+".log");
+   }
+
+   private File snapshotFile() {
+      return new File(dir, "students.snapshot");
+   }
+
+   /**
+    * Loads the last snapshot and replays the logs written after it.
+    * @return false if there was neither a snapshot nor a log to recover from
+    */
+   public synchronized boolean recover(Map<String,Student> into) throws IOException {
+      boolean found = false;
+      int snapshotGen = 0;
+      // if the snapshot cannot be read, carry on after the newest log so
+      // a fresh start is not mixed up with the records already there
+      for (int gen : logGenerations()) {
+         generation = Math.max(generation, gen);
+      }
+      if (snapshotFile().exists()) {
+         snapshotGen = readSnapshot(into);
+         found = true;
+      }
+      generation = Math.max(generation, snapshotGen);
+      for (int gen : logGenerations()) {
+         if (gen < snapshotGen) {
+            continue;
+         }
+         recordsSinceSnapshot += replay(logFile(gen), into, Long.MAX_VALUE, true);
+         found = true;
+      }
+      debug("recovered "+into.size()+" students, log generation "+generation);
+      return found;
+   }
+
+   /**
+    * Opens the current generation's log for appending. What is in the logs
+    * already counts as saved.
+    */
+   public synchronized void open() throws IOException {
+      written = logFile(generation).length();
+      logFile = new FileOutputStream(logFile(generation), true);
+      logOut = new DataOutputStream(new BufferedOutputStream(logFile, 64*1024));
+      savedGeneration = generation;
+      savedLength = written;
+   }
+
+   /**
+    * Loads the state of the last sync into the empty map and drops every
+    * record written after it, so recovery after a crash comes back to the
+    * same state. Appending continues after the saved mark.
+    * @return false if there was neither a snapshot nor a saved log record
+    */
+   public synchronized boolean restoreSaved(Map<String,Student> into) throws IOException {
+      boolean found = false;
+      int snapshotGen = 0;
+      if (snapshotFile().exists()) {
+         snapshotGen = readSnapshot(into);
+         found = true;
+      }
+      for (int gen : logGenerations()) {
+         if (gen >= snapshotGen && gen <= savedGeneration) {
+            long limit = (gen == savedGeneration) ? savedLength : Long.MAX_VALUE;
+            if (replay(logFile(gen), into, limit, false) > 0) {
+               found = true;
+            }
+         }
+      }
+      logOut.close();
+      for (int gen : logGenerations()) {
+         if (gen > savedGeneration) {
+            logFile(gen).delete();
+         }
+      }
+      FileChannel ch = new RandomAccessFile(logFile(savedGeneration), "rw").getChannel();
+      try {
+         ch.truncate(savedLength);
+         ch.force(false);
+      } finally {
+         ch.close();
+      }
+      generation = savedGeneration;
+      recordsSinceSnapshot = 0;
+      open();
+      debug("restored "+into.size()+" saved students, log generation "+generation);
+      return found;
+   }
+
+   public synchronized void logAdd(Student stud) throws IOException {
+      record.reset();
+      recordOut.writeByte(OP_ADD);
+      writeStudent(recordOut, stud);
+      append();
+   }
+
+   public synchronized void logRemove(String name) throws IOException {
+      record.reset();
+      recordOut.writeByte(OP_REMOVE);
+      recordOut.writeUTF(name);
+      append();
+   }
+
+   private void append() throws IOException {
+      crc.reset();
+      crc.update(record.toByteArray(), 0, record.size());
+      logOut.writeInt(record.size());
+      record.writeTo(logOut);
+      logOut.writeInt((int)crc.getValue());
+      written += 4 + record.size() + 4;
+      recordsSinceSnapshot++;
+      if (policy != FsyncPolicy.NEVER) {
+         logOut.flush();
+      }
+      if (policy == FsyncPolicy.ALWAYS) {
+         logFile.getChannel().force(false);
+      }
+   }
+
+   /**
+    * Makes all records written so far durable, unless the policy is NEVER.
+    */
+   public synchronized void sync() throws IOException {
+      logOut.flush();
+      if (policy != FsyncPolicy.NEVER) {
+         logFile.getChannel().force(false);
+      }
+      savedGeneration = generation;
+      savedLength = written;
+   }
+
+   public synchronized long recordsSinceSnapshot() {
+      return recordsSinceSnapshot;
+   }
+
+   /**
+    * Closes the current log and starts appending to the next generation.
+    * @return the new generation, to be passed to writeSnapshot
+    */
+   public synchronized int startNewGeneration() throws IOException {
+      sync();
+      logOut.close();
+      generation++;
+      recordsSinceSnapshot = 0;
+      open();
+      return generation;
+   }
+
+   /**
+    * Writes the snapshot of the given generation from the previous snapshot
+    * and the logs before that generation, which startNewGeneration has
+    * already synced. Updates going into the new log are left out even if
+    * they happen while the snapshot is written.
+    */
+   public void compact(int gen) throws IOException {
+      Map<String,Student> upTo = new HashMap<String,Student>();
+      int snapshotGen = 0;
+      if (snapshotFile().exists()) {
+         snapshotGen = readSnapshot(upTo);
+      }
+      for (int old : logGenerations()) {
+         if (old >= snapshotGen && old < gen) {
+            replay(logFile(old), upTo, Long.MAX_VALUE, false);
+         }
+      }
+      writeSnapshot(gen, upTo.values());
+   }
+
+   /**
+    * Writes the students as the snapshot of the given generation and deletes
+    * the logs it makes obsolete. The snapshot is written to a temporary file
+    * and renamed, so a crash leaves either the old or the new snapshot.
+    */
+   public void writeSnapshot(int gen, Collection<Student> students) throws IOException {
+      File tmp = new File(dir, "students.snapshot.tmp");
+      FileOutputStream file = new FileOutputStream(tmp);
+      CheckedOutputStream checked = new CheckedOutputStream(
+         new BufferedOutputStream(file, 64*1024), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      try {
+         out.writeInt(SNAPSHOT_MAGIC);
+         out.writeInt(SNAPSHOT_VERSION);
+         out.writeInt(gen);
+         // the collection may change while we write, so count as we go
+         List<Student> copy = new ArrayList<Student>(students);
+         out.writeInt(copy.size());
+         for (Student stud : copy) {
+            writeStudent(out, stud);
+         }
+         out.flush();
+         out.writeInt((int)checked.getChecksum().getValue());
+         out.flush();
+         file.getChannel().force(true);
+      } finally {
+         out.close();
+      }
+      Files.move(tmp.toPath(), snapshotFile().toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      for (int old : logGenerations()) {
+         if (old < gen) {
+            logFile(old).delete();
+         }
+      }
+      debug("wrote snapshot of generation "+gen);
+   }
+
+   private int readSnapshot(Map<String,Student> into) throws IOException {
+      CheckedInputStream checked = new CheckedInputStream(
+         new BufferedInputStream(new FileInputStream(snapshotFile()), 64*1024), new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      try {
+         if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+            throw new IOException("not a student snapshot: "+snapshotFile());
+         }
+         int gen = in.readInt();
+         int count = in.readInt();
+         for (int i=0; i<count; i++) {
+            Student stud = readStudent(in);
+            into.put(stud.name, stud);
+         }
+         int expected = (int)checked.getChecksum().getValue();
+         if (in.readInt() != expected) {
+            throw new IOException("corrupt student snapshot: "+snapshotFile());
+         }
+         return gen;
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Applies the intact records in the first limit bytes of the log. A torn
+    * or corrupt tail ends the replay, and with truncate it is cut off.
+    * @return number of records applied
+    */
+   private long replay(File log, Map<String,Student> into, long limit,
+                       boolean truncate) throws IOException {
+      long applied = 0;
+      long goodLength = 0;
+      long length = Math.min(log.length(), limit);
+      DataInputStream in = new DataInputStream(
+         new BufferedInputStream(new FileInputStream(log), 64*1024));
+      try {
+         while (true) {
+            int len;
+            byte[] bytes;
+            int sum;
+            try {
+               if (goodLength + 4 > length) {
+                  break;
+               }
+               len = in.readInt();
+               // a length running past the end of the log was torn by a crash
+               if (len <= 0 || len > maxRecordLength || len > length - goodLength - 8) {
+                  break;
+               }
+               bytes = new byte[len];
+               in.readFully(bytes);
+               sum = in.readInt();
+            } catch (EOFException e) {
+               break;
+            }
+            crc.reset();
+            crc.update(bytes, 0, len);
+            if ((int)crc.getValue() != sum) {
+               break;
+            }
+            DataInputStream rec = new DataInputStream(new ByteArrayInputStream(bytes));
+            byte op = rec.readByte();
+            if (op == OP_ADD) {
+               Student stud = readStudent(rec);
+               into.put(stud.name, stud);
+            } else if (op == OP_REMOVE) {
+               into.remove(rec.readUTF());
+            } else {
+               break;
+            }
+            applied++;
+            goodLength += 4 + len + 4;
+         }
+      } finally {
+         in.close();
+      }
+      if (truncate && goodLength < log.length()) {
+         System.out.println("Cutting off "+(log.length()-goodLength)+
+                            " bytes of incomplete records from "+log);
+         FileChannel ch = new RandomAccessFile(log, "rw").getChannel();
+         try {
+            ch.truncate(goodLength);
+         } finally {
+            ch.close();
+         }
+      }
+      return applied;
+   }
+
+   private List<Integer> logGenerations() {
+      List<Integer> ret = new ArrayList<Integer>();
+      String[] names = dir.list();
+      if (names == null) {
+         return ret;
+      }
+      for (String name : names) {
+         if (name.startsWith("students.") && name.endsWith(".log")) {
+            try {
+               ret.add(Integer.parseInt(name.substring(9, name.length()-4)));
+            } catch (NumberFormatException e) {
+               // not one of ours
+            }
+         }
+      }
+      Collections.sort(ret);
+      return ret;
+   }
+
+   private static void writeStudent(DataOutputStream out, Student stud) throws IOException {
+      out.writeUTF(stud.name);
+      out.writeInt(stud.studentid);
+      out.writeInt(stud.takes.size());
+      for (String course : stud.takes) {
+         out.writeUTF(course);
+      }
+   }
+
+   private static Student readStudent(DataInputStream in) throws IOException {
+      String name = in.readUTF();
+      int id = in.readInt();
+      String[] takes = new String[in.readInt()];
+      for (int i=0; i<takes.length; i++) {
+         takes[i] = in.readUTF();
+      }
+      return new Student(name, id, takes);
+   }
+}
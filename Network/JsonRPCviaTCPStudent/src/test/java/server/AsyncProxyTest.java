@@ -0,0 +1,147 @@
+package server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.StudentTcpAsyncProxy;
+
+public class AsyncProxyTest {
+
+   private StudentCollectionImpl students;
+   private TestServer serv;
+   private StudentTcpAsyncProxy proxy;
+
+   @Before
+   public void setUp() throws IOException {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      students = new StudentCollectionImpl(dataDir);
+      students.add(new Student("Ann", 1, new String[]{"Ser321"}));
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (proxy != null) {
+         proxy.close();
+      }
+      if (serv != null) {
+         serv.close();
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void futuresComplete() throws Exception {
+      serv = new TestServer(students);
+      proxy = new StudentTcpAsyncProxy("localhost", serv.getPort());
+      CompletableFuture<Student> ann = proxy.get("Ann");
+      CompletableFuture<String> name = proxy.getNameById(1);
+      CompletableFuture<String[]> names = proxy.getNames();
+      assertEquals(1, ann.get(5, TimeUnit.SECONDS).studentid);
+      assertEquals("Ann", name.get(5, TimeUnit.SECONDS));
+      assertArrayEquals(new String[]{"Ann"}, names.get(5, TimeUnit.SECONDS));
+   }
+
+   @Test(timeout = 10000)
+   public void pipelinedCallsSeeEachOthersEffects() throws Exception {
+      serv = new TestServer(students);
+      proxy = new StudentTcpAsyncProxy("localhost", serv.getPort());
+      // nothing is joined until the end, every call is on the wire behind the one before it
+      List<CompletableFuture<Boolean>> adds = new ArrayList<CompletableFuture<Boolean>>();
+      for (int i = 2; i <= 50; i++) {
+         adds.add(proxy.add(new Student("Student " + i, i, new String[]{"Ser321"})));
+      }
+      CompletableFuture<String> last = proxy.getNameById(50);
+      CompletableFuture<Boolean> removed = proxy.remove("Ann");
+      CompletableFuture<String[]> names = proxy.getNames();
+      CompletableFuture<Boolean> readded = proxy.add(new Student("Ann", 1, new String[]{"Ser321"}));
+      CompletableFuture<Student> ann = proxy.get("Ann");
+
+      for (CompletableFuture<Boolean> add : adds) {
+         assertTrue(add.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals("Student 50", last.get(5, TimeUnit.SECONDS));
+      assertTrue(removed.get(5, TimeUnit.SECONDS));
+      List<String> afterRemove = Arrays.asList(names.get(5, TimeUnit.SECONDS));
+      assertEquals(49, afterRemove.size());
+      assertFalse(afterRemove.contains("Ann"));
+      assertTrue(readded.get(5, TimeUnit.SECONDS));
+      assertEquals(1, ann.get(5, TimeUnit.SECONDS).studentid);
+   }
+
+   @Test(timeout = 10000)
+   public void outstandingCallsFailWhenTheServerCloses() throws Exception {
+      // reads the first call, then hangs up without answering
+      ServerSocket silent = new ServerSocket(0);
+      CountDownLatch called = new CountDownLatch(1);
+      Thread server = new Thread(() -> {
+         try (Socket sock = silent.accept()) {
+            JsonFraming.read(new DataInputStream(sock.getInputStream()));
+            called.countDown();
+         } catch (IOException e) {
+            // client gone
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+      proxy = new StudentTcpAsyncProxy("localhost", silent.getLocalPort());
+      try {
+         CompletableFuture<Student> ann = proxy.get("Ann");
+         assertTrue(called.await(5, TimeUnit.SECONDS));
+         try {
+            ann.get(5, TimeUnit.SECONDS);
+            fail("call on a closed connection must fail");
+         } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+         }
+      } finally {
+         silent.close();
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void outstandingCallsFailWhenTheClientCloses() throws Exception {
+      // accepts and reads but never answers
+      ServerSocket silent = new ServerSocket(0);
+      Thread server = new Thread(() -> {
+         try (Socket sock = silent.accept()) {
+            while (sock.getInputStream().read() >= 0) {
+            }
+         } catch (IOException e) {
+            // client gone
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+      proxy = new StudentTcpAsyncProxy("localhost", silent.getLocalPort());
+      try {
+         CompletableFuture<String[]> names = proxy.getNames();
+         CompletableFuture<Boolean> added = proxy.add(new Student("Bob", 2, new String[]{"Ser321"}));
+         assertFalse(names.isDone());
+         proxy.close();
+         for (CompletableFuture<?> call : Arrays.asList(names, added)) {
+            try {
+               call.get(5, TimeUnit.SECONDS);
+               fail("outstanding call must fail on close");
+            } catch (ExecutionException e) {
+               assertTrue(e.getCause() instanceof IOException);
+            }
+         }
+      } finally {
+         silent.close();
+      }
+   }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.JsonRpcConnection;
+
+public class BatchDispatchTest {
+
+   private StudentCollectionImpl students;
+   private StudentCollectionSkeleton skeleton;
+
+   @Before
+   public void setUp() throws IOException {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      students = new StudentCollectionImpl(dataDir);
+      for (int i = 0; i < 200; i++) {
+         students.add(new Student("Student " + i, i, new String[]{"Ser" + (i % 7)}));
+      }
+      skeleton = new StudentCollectionSkeleton(students);
+   }
+
+   private static JSONObject call(Integer id, String method, Object... params) {
+      JSONObject theCall = new JSONObject();
+      theCall.put("jsonrpc", "2.0");
+      theCall.put("method", method);
+      if (id != null) {
+         theCall.put("id", id.intValue());
+      }
+      JSONArray paramsJson = new JSONArray();
+      for (Object param : params) {
+         paramsJson.put(param);
+      }
+      theCall.put("params", paramsJson);
+      // parsed back as the server would read it off the connection
+      return new JSONObject(theCall.toString());
+   }
+
+   @Test
+   public void readOnlyBatchAnswersInCallOrder() {
+      JSONArray calls = new JSONArray();
+      for (int i = 0; i < 200; i++) {
+         calls.put(call(i, "get", "Student " + i));
+      }
+      JSONArray parallel = skeleton.callBatch(calls);
+      skeleton.setParallelBatches(false);
+      JSONArray inOrder = skeleton.callBatch(calls);
+
+      assertEquals(200, parallel.length());
+      for (int i = 0; i < 200; i++) {
+         JSONObject res = parallel.getJSONObject(i);
+         assertEquals(i, res.getInt("id"));
+         assertEquals(i, res.getJSONObject("result").getInt("studentid"));
+         assertEquals(inOrder.getJSONObject(i).toString(), res.toString());
+      }
+   }
+
+   @Test
+   public void batchWithUpdatesRunsInOrder() {
+      Student added = new Student("New Student", 999, new String[]{"Ser321"});
+      JSONArray calls = new JSONArray();
+      calls.put(call(1, "add", added.toJson()));
+      calls.put(call(2, "get", "New Student"));
+      calls.put(call(3, "remove", "New Student"));
+      calls.put(call(4, "getNameById", 999));
+      JSONArray responses = skeleton.callBatch(calls);
+
+      assertEquals(4, responses.length());
+      assertTrue(responses.getJSONObject(0).getBoolean("result"));
+      assertEquals(999, responses.getJSONObject(1).getJSONObject("result").getInt("studentid"));
+      assertTrue(responses.getJSONObject(2).getBoolean("result"));
+      assertEquals("unknown", responses.getJSONObject(3).getString("result"));
+      assertEquals(200, students.getNames().length);
+   }
+
+   @Test
+   public void notificationsRunWithoutResponse() {
+      Student added = new Student("Quiet Student", 1000, new String[]{"Ser321"});
+      JSONArray calls = new JSONArray();
+      calls.put(call(null, "add", added.toJson()));
+      calls.put(call(7, "getNameById", 1000));
+      JSONArray responses = skeleton.callBatch(calls);
+
+      assertEquals(1, responses.length());
+      assertEquals(7, responses.getJSONObject(0).getInt("id"));
+      assertEquals("Quiet Student", responses.getJSONObject(0).getString("result"));
+   }
+
+   @Test
+   public void emptyBatchGetsEmptyResponse() {
+      assertEquals(0, skeleton.callBatch(new JSONArray()).length());
+   }
+
+   @Test(timeout = 10000)
+   public void batchStartingWithNotificationOverConnection() throws Exception {
+      TestServer serv = new TestServer(students);
+      JsonRpcConnection conn = new JsonRpcConnection("localhost", serv.getPort());
+      try {
+         Student added = new Student("Quiet Student", 1000, new String[]{"Ser321"});
+         JSONArray calls = new JSONArray();
+         calls.put(call(null, "add", added.toJson()));
+         calls.put(call(11, "getNameById", 1000));
+         calls.put(call(12, "getNameById", 1));
+         JSONArray responses = conn.sendBatch(calls).get(5, TimeUnit.SECONDS);
+         assertEquals(2, responses.length());
+         assertEquals("Quiet Student", responses.getJSONObject(0).getString("result"));
+
+         // nothing comes back for notifications only, the next call gets its own response
+         JSONArray quiet = new JSONArray();
+         quiet.put(call(null, "remove", "Quiet Student"));
+         assertEquals(0, conn.sendBatch(quiet).get(5, TimeUnit.SECONDS).length());
+         JSONObject res = conn.send(call(13, "getNameById", 1000)).get(5, TimeUnit.SECONDS);
+         assertEquals(13, res.getInt("id"));
+         assertEquals("unknown", res.getString("result"));
+      } finally {
+         conn.close();
+         serv.close();
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void errorForWholeBatchFailsIt() throws Exception {
+      // answers the first message with an error that belongs to no call
+      ServerSocket serv = new ServerSocket(0);
+      Thread server = new Thread(() -> {
+         try (Socket sock = serv.accept()) {
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            JsonFraming.read(in);
+            JSONObject error = new JSONObject();
+            error.put("code", -32600);
+            error.put("message", "Invalid Request");
+            JSONObject response = new JSONObject();
+            response.put("jsonrpc", "2.0");
+            response.put("id", JSONObject.NULL);
+            response.put("error", error);
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            JsonFraming.write(out, response, new ByteArrayOutputStream());
+            out.flush();
+            in.read(); // until the client is done
+         } catch (IOException e) {
+            // client gone
+         }
+      });
+      server.setDaemon(true);
+      server.start();
+      JsonRpcConnection conn = new JsonRpcConnection("localhost", serv.getLocalPort());
+      try {
+         JSONArray calls = new JSONArray();
+         calls.put(call(21, "get", "Student 1"));
+         try {
+            conn.sendBatch(calls).get(5, TimeUnit.SECONDS);
+            fail("batch answered with an error must fail");
+         } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+         }
+      } finally {
+         conn.close();
+         serv.close();
+      }
+   }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.StudentTcpProxy;
+
+public class CacheInvalidationTest {
+
+   private StudentCollectionImpl students;
+   private TestServer serv;
+
+   @Before
+   public void setUp() throws IOException {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      students = new StudentCollectionImpl(dataDir);
+      students.add(new Student("Ann", 1, new String[]{"Ser321"}));
+      students.addChangeListener(StudentCollectionTCPJsonRPCServer::changed);
+      StudentCollectionTCPJsonRPCServer.startNotifier();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (serv != null) {
+         serv.close();
+      }
+   }
+
+   private int startServer() throws IOException {
+      serv = new TestServer(students);
+      return serv.getPort();
+   }
+
+   private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!condition.getAsBoolean()) {
+         assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+         Thread.sleep(20);
+      }
+   }
+
+   @Test(timeout = 20000)
+   public void cachedClientSeesChanges() throws Exception {
+      StudentTcpProxy cached = new StudentTcpProxy("localhost", startServer());
+      cached.enableCache(100, 60000);
+      try {
+         assertEquals(1, cached.get("Ann").studentid);
+         assertEquals(1, cached.getNames().length);
+
+         students.add(new Student("Ann", 2, new String[]{"Ser321"}));
+         waitFor("changed student", () -> cached.get("Ann").studentid == 2);
+         students.add(new Student("Bob", 3, new String[]{"Ser321"}));
+         waitFor("added name", () -> Arrays.asList(cached.getNames()).contains("Bob"));
+      } finally {
+         cached.close();
+      }
+   }
+
+   @Test(timeout = 20000)
+   public void cachedClientReadsItsOwnWrites() throws Exception {
+      StudentTcpProxy cached = new StudentTcpProxy("localhost", startServer());
+      cached.enableCache(100, 60000);
+      try {
+         // each read right after the write, before the server's invalidation can come back
+         for (int i = 0; i < 200; i++) {
+            cached.get("Ann");
+            cached.getNames();
+            assertTrue(cached.add(new Student("Ann", i, new String[]{"Ser321"})));
+            assertEquals(i, cached.get("Ann").studentid);
+         }
+         assertTrue(cached.add(new Student("Bob", 2, new String[]{"Ser321"})));
+         assertTrue(Arrays.asList(cached.getNames()).contains("Bob"));
+         assertEquals(2, cached.get("Bob").studentid);
+         assertTrue(cached.remove("Bob"));
+         assertFalse(Arrays.asList(cached.getNames()).contains("Bob"));
+         assertEquals("unknown", cached.get("Bob").name);
+         assertTrue(cached.addAll(new Student[]{new Student("Bob", 3, new String[]{"Ser321"})}));
+         assertEquals(3, cached.get("Bob").studentid);
+      } finally {
+         cached.close();
+      }
+   }
+
+   @Test(timeout = 30000)
+   public void stalledSubscriberIsDroppedWithoutHoldingUpOthers() throws Exception {
+      int port = startServer();
+      // subscribes and then never reads, with as little buffering as possible
+      Socket stalled = new Socket();
+      stalled.setReceiveBufferSize(4096);
+      stalled.connect(new InetSocketAddress("localhost", port));
+      JSONObject subscribe = new JSONObject();
+      subscribe.put("jsonrpc", "2.0");
+      subscribe.put("id", 1);
+      subscribe.put("method", "subscribeInvalidations");
+      subscribe.put("params", new JSONArray());
+      DataOutputStream out = new DataOutputStream(stalled.getOutputStream());
+      JsonFraming.write(out, subscribe, new ByteArrayOutputStream());
+      out.flush();
+
+      StudentTcpProxy cached = new StudentTcpProxy("localhost", port);
+      cached.enableCache(100, 60000);
+      try {
+         assertEquals(1, cached.get("Ann").studentid);
+         Thread.sleep(200);
+
+         // far more notification bytes than the stalled socket can buffer, paced so
+         // the notifier never has over 1000 names at once and sends "*" instead
+         char[] padding = new char[10000];
+         Arrays.fill(padding, 'x');
+         for (int i = 0; i < 2000; i++) {
+            students.add(new Student(new String(padding) + i, 100 + i, new String[]{"Ser321"}));
+            if (i % 100 == 99) {
+               Thread.sleep(20);
+            }
+         }
+         students.add(new Student("Ann", 2, new String[]{"Ser321"}));
+         waitFor("changed student", () -> cached.get("Ann").studentid == 2);
+
+         // what the server managed to send, then the end of the stream
+         stalled.setSoTimeout(10000);
+         InputStream in = stalled.getInputStream();
+         byte[] buf = new byte[64 * 1024];
+         while (in.read(buf) >= 0) {
+         }
+      } finally {
+         cached.close();
+         stalled.close();
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.StudentTcpProxy;
+
+public class IdleConnectionTest {
+
+   private TestServer serv;
+
+   private int startServer(int workers, int readTimeout) throws IOException {
+      return startServer(workers, readTimeout, 1000);
+   }
+
+   private int startServer(int workers, int readTimeout, int maxConnections) throws IOException {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      students.add(new Student("Ann", 1, new String[]{"Ser321"}));
+      serv = new TestServer(students, workers, 10, readTimeout, maxConnections);
+      return serv.getPort();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      serv.close();
+   }
+
+   @Test(timeout = 10000)
+   public void idleClientsDoNotHoldWorkers() throws Exception {
+      int port = startServer(2, 60000);
+      // far more open connections than workers, all of them idle between calls
+      StudentTcpProxy[] proxies = new StudentTcpProxy[8];
+      for (int i = 0; i < proxies.length; i++) {
+         proxies[i] = new StudentTcpProxy("localhost", port);
+         assertEquals("Ann", proxies[i].getNameById(1));
+      }
+      try {
+         for (StudentTcpProxy proxy : proxies) {
+            assertEquals("Ann", proxy.getNameById(1));
+         }
+         JSONObject stats = proxies[0].serverStats();
+         assertTrue(stats.toString(), stats.getInt("activeConnections") >= 8);
+         // give the selector a moment to take back the connection that asked
+         Thread.sleep(200);
+         stats = proxies[0].serverStats();
+         assertTrue(stats.toString(), stats.getInt("idleConnections") >= 7);
+      } finally {
+         for (StudentTcpProxy proxy : proxies) {
+            proxy.close();
+         }
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void quietConnectionIsClosedAfterTimeout() throws Exception {
+      int port = startServer(2, 1000);
+      Socket sock = new Socket("localhost", port);
+      try {
+         sock.setSoTimeout(8000);
+         InputStream in = sock.getInputStream();
+         long start = System.currentTimeMillis();
+         assertEquals(-1, in.read());
+         assertTrue(System.currentTimeMillis() - start >= 900);
+      } finally {
+         sock.close();
+      }
+   }
+
+   @Test(timeout = 10000)
+   public void connectionsBeyondTheCapAreTurnedAway() throws Exception {
+      int port = startServer(2, 60000, 3);
+      // parked connections count as well, none of these sends a request
+      Socket[] open = new Socket[3];
+      for (int i = 0; i < open.length; i++) {
+         open[i] = new Socket("localhost", port);
+      }
+      Socket extra = new Socket("localhost", port);
+      try {
+         extra.setSoTimeout(5000);
+         DataInputStream in = new DataInputStream(extra.getInputStream());
+         JSONObject error = (JSONObject)JsonFraming.read(in);
+         assertEquals(-32000, error.getJSONObject("error").getInt("code"));
+         assertEquals(-1, in.read());
+
+         // once one is closed there is room again
+         open[0].close();
+         Thread.sleep(200);
+         StudentTcpProxy proxy = new StudentTcpProxy("localhost", port);
+         try {
+            assertEquals("Ann", proxy.getNameById(1));
+         } finally {
+            proxy.close();
+         }
+      } finally {
+         extra.close();
+         for (Socket sock : open) {
+            sock.close();
+         }
+      }
+   }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.StudentTcpProxy;
+
+public class JsonFramingTest {
+
+   private static String bigString(int len) {
+      StringBuilder sb = new StringBuilder(len);
+      for (int i = 0; i < len; i++) {
+         sb.append((char)('a' + i % 26));
+      }
+      return sb.toString();
+   }
+
+   @Test
+   public void multiMegabyteFrameRoundTrip() throws IOException {
+      JSONObject big = new JSONObject();
+      big.put("id", 1);
+      big.put("data", bigString(5 * 1024 * 1024));
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      JsonFraming.write(out, big, buffer);
+      JsonFraming.write(out, new JSONArray().put("second"), buffer);
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      JSONObject read = (JSONObject) JsonFraming.read(in);
+      assertEquals(big.getString("data"), read.getString("data"));
+      JSONArray second = (JSONArray) JsonFraming.read(in);
+      assertEquals("second", second.getString(0));
+      assertNull(JsonFraming.read(in));
+   }
+
+   @Test(expected = IOException.class)
+   public void truncatedFrameFails() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(100);
+      out.write("{\"id\":1".getBytes("UTF-8"));
+      JsonFraming.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+   }
+
+   @Test
+   public void largeCallsThroughServer() throws Exception {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      TestServer serv = new TestServer(students);
+      StudentTcpProxy proxy = new StudentTcpProxy("localhost", serv.getPort());
+      try {
+         // a single student whose request and response are several megabytes
+         String[] courses = new String[200000];
+         for (int i = 0; i < courses.length; i++) {
+            courses[i] = "Ser" + i;
+         }
+         assertTrue(proxy.add(new Student("Big Student", 42, courses)));
+         Student back = proxy.get("Big Student");
+         assertEquals(courses.length, back.takes.size());
+         assertEquals("Ser199999", back.takes.get(courses.length - 1));
+
+         // a large roster for getNames
+         for (int i = 0; i < 20000; i++) {
+            students.add(new Student("Student " + i, i, new String[]{"Ser321"}));
+         }
+         String[] names = proxy.getNames();
+         assertEquals(20001, names.length);
+      } finally {
+         proxy.close();
+         serv.close();
+      }
+   }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import client.StudentTcpProxy;
+
+public class PagingExportTest {
+
+   private StudentCollectionImpl students;
+   private TestServer serv;
+   private StudentTcpProxy proxy;
+
+   @Before
+   public void setUp() throws IOException {
+      File dataDir = Files.createTempDirectory("students").toFile();
+      students = new StudentCollectionImpl(dataDir);
+      // 1000 students, a whole number of pages of 100
+      for (int i = 0; i < 1000; i++) {
+         students.add(new Student(String.format("Student %04d", i), i, new String[]{"Ser321"}));
+      }
+      serv = new TestServer(students);
+      proxy = new StudentTcpProxy("localhost", serv.getPort());
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      proxy.close();
+      serv.close();
+   }
+
+   @Test
+   public void listPagesThroughAllStudentsInOrder() {
+      List<String> names = new ArrayList<String>();
+      String cursor = "";
+      Student[] page;
+      do {
+         page = proxy.list(cursor, 100);
+         for (Student stud : page) {
+            names.add(stud.name);
+         }
+         if (page.length > 0) {
+            cursor = page[page.length - 1].name;
+         }
+      } while (page.length == 100);
+
+      assertEquals(1000, names.size());
+      for (int i = 0; i < names.size(); i++) {
+         assertEquals(String.format("Student %04d", i), names.get(i));
+      }
+   }
+
+   @Test
+   public void changesBetweenPagesAreNotRepeated() {
+      Student[] first = students.list("", 100);
+      String cursor = first[first.length - 1].name;
+      // one change before the cursor, one after it
+      students.remove("Student 0050");
+      students.add(new Student("Student 0000a", 5000, new String[]{"Ser321"}));
+      students.add(new Student("Student 0500a", 5001, new String[]{"Ser321"}));
+
+      Set<String> seen = new HashSet<String>();
+      for (Student stud : first) {
+         seen.add(stud.name);
+      }
+      Student[] page;
+      do {
+         page = students.list(cursor, 100);
+         for (Student stud : page) {
+            assertTrue("returned twice: " + stud.name, seen.add(stud.name));
+         }
+         if (page.length > 0) {
+            cursor = page[page.length - 1].name;
+         }
+      } while (page.length == 100);
+
+      assertEquals(1001, seen.size());
+      assertTrue(seen.contains("Student 0500a"));
+      assertFalse(seen.contains("Student 0000a"));
+   }
+
+   @Test
+   public void exportStreamsEveryStudent() {
+      List<Student> exported = new ArrayList<Student>();
+      assertEquals(1000, proxy.export(exported::add, 100));
+      assertEquals(1000, exported.size());
+      for (int i = 0; i < exported.size(); i++) {
+         assertEquals(String.format("Student %04d", i), exported.get(i).name);
+         assertEquals(i, exported.get(i).studentid);
+      }
+      // the connection is still usable after the stream ended
+      assertEquals("Student 0007", proxy.getNameById(7));
+   }
+
+   @Test
+   public void exportOfEmptyCollection() {
+      for (String name : students.getNames()) {
+         students.remove(name);
+      }
+      List<Student> exported = new ArrayList<Student>();
+      assertEquals(0, proxy.export(exported::add, 100));
+      assertTrue(exported.isEmpty());
+   }
+}
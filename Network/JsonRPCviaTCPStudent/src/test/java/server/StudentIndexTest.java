@@ -0,0 +1,40 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StudentIndexTest {
+
+   @Test
+   public void addAndRemoveRacingOnOneCourse() throws Exception {
+      StudentIndex index = new StudentIndex();
+      Student churn = new Student("churn", 1, new String[]{"Ser321"});
+      CountDownLatch start = new CountDownLatch(1);
+      // one thread keeps emptying the course, the other keeps joining it
+      Thread remover = new Thread(() -> {
+         try {
+            start.await();
+         } catch (InterruptedException e) {
+            return;
+         }
+         for (int i = 0; i < 20000; i++) {
+            index.add(churn);
+            index.remove(churn);
+         }
+      });
+      remover.start();
+      start.countDown();
+      for (int i = 0; i < 20000; i++) {
+         Student stud = new Student("s" + i, i, new String[]{"Ser321"});
+         index.add(stud);
+      }
+      remover.join();
+      String[] names = index.namesTaking("Ser321");
+      assertEquals(20000, names.length);
+      assertFalse(Arrays.asList(names).contains("churn"));
+   }
+}
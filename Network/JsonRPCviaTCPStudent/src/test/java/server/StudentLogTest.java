@@ -0,0 +1,140 @@
+package server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StudentLogTest {
+
+   private File dataDir;
+
+   @Before
+   public void setUp() throws IOException {
+      dataDir = Files.createTempDirectory("students").toFile();
+   }
+
+   private static Student student(String name, int id) {
+      return new Student(name, id, new String[]{"Ser321"});
+   }
+
+   private static void assertNames(StudentCollection students, String... names) {
+      String[] actual = students.getNames().clone();
+      Arrays.sort(actual);
+      Arrays.sort(names);
+      assertArrayEquals(names, actual);
+   }
+
+   @Test
+   public void recoversUnsavedRecordsAfterCrash() {
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      students.add(student("Ann", 1));
+      students.add(student("Bob", 2));
+      assertTrue(students.saveToJsonFile());
+      students.add(student("Cat", 3));
+      students.remove("Ann");
+
+      // a new collection on the same directory without closing the old one
+      StudentCollectionImpl recovered = new StudentCollectionImpl(dataDir);
+      assertNames(recovered, "Bob", "Cat");
+      assertEquals(3, recovered.get("Cat").studentid);
+   }
+
+   @Test
+   public void tornTailIsCutOff() throws IOException {
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      students.add(student("Ann", 1));
+      students.add(student("Bob", 2));
+      assertTrue(students.saveToJsonFile());
+      File log = new File(dataDir, "students.0.log");
+      long goodLength = log.length();
+
+      // a record whose length claims far more bytes than the crash left behind
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(log, true));
+      try {
+         out.writeInt(Integer.MAX_VALUE);
+         out.write(new byte[]{'A', 0, 3});
+      } finally {
+         out.close();
+      }
+
+      StudentCollectionImpl recovered = new StudentCollectionImpl(dataDir);
+      assertNames(recovered, "Ann", "Bob");
+      assertEquals(goodLength, log.length());
+   }
+
+   @Test
+   public void corruptRecordEndsReplay() throws IOException {
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      students.add(student("Ann", 1));
+      assertTrue(students.saveToJsonFile());
+      File log = new File(dataDir, "students.0.log");
+      long goodLength = log.length();
+      students.add(student("Bob", 2));
+      assertTrue(students.saveToJsonFile());
+
+      // flip the last byte of Bob's checksum
+      RandomAccessFile file = new RandomAccessFile(log, "rw");
+      try {
+         file.seek(file.length() - 1);
+         int last = file.read();
+         file.seek(file.length() - 1);
+         file.write(last ^ 0xff);
+      } finally {
+         file.close();
+      }
+
+      StudentCollectionImpl recovered = new StudentCollectionImpl(dataDir);
+      assertNames(recovered, "Ann");
+      assertEquals(goodLength, log.length());
+   }
+
+   @Test
+   public void corruptSnapshotFallsBackToSeed() throws IOException {
+      PrintWriter seed = new PrintWriter(new File(dataDir, "students.json"));
+      try {
+         seed.println("{\"Ann\":{\"name\":\"Ann\",\"studentid\":1,\"takes\":[\"Ser321\"]}}");
+      } finally {
+         seed.close();
+      }
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      assertNames(students, "Ann");
+      File snapshot = new File(dataDir, "students.snapshot");
+      assertTrue(snapshot.exists());
+
+      RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+      try {
+         file.seek(file.length() - 6);
+         file.write(0x55);
+      } finally {
+         file.close();
+      }
+
+      StudentCollectionImpl recovered = new StudentCollectionImpl(dataDir);
+      assertNames(recovered, "Ann");
+      // the seed became the new snapshot
+      assertNames(new StudentCollectionImpl(dataDir), "Ann");
+   }
+
+   @Test
+   public void resetGoesBackToLastSave() {
+      StudentCollectionImpl students = new StudentCollectionImpl(dataDir);
+      students.add(student("Ann", 1));
+      assertTrue(students.saveToJsonFile());
+      students.add(student("Bob", 2));
+      students.remove("Ann");
+
+      assertTrue(students.resetFromJsonFile());
+      assertNames(students, "Ann");
+      // the dropped changes stay dropped after a restart
+      assertNames(new StudentCollectionImpl(dataDir), "Ann");
+
+      students.add(student("Cat", 3));
+      assertTrue(students.saveToJsonFile());
+      assertNames(new StudentCollectionImpl(dataDir), "Ann", "Cat");
+   }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * The real server for a test: serve() on a free port of localhost, on a
+ * thread of its own until close(). Connections go through the worker pool
+ * and the idle selector like they do in production.
+ */
+class TestServer implements Closeable {
+
+   private final ServerSocketChannel serv;
+   private final Thread thread;
+
+   TestServer(StudentCollection students) throws IOException {
+      this(students, 4, 10, 60000, 1000);
+   }
+
+   TestServer(StudentCollection students, int workers, int queueLimit, int readTimeout,
+              int maxConnections) throws IOException {
+      StudentCollectionSkeleton skeleton = new StudentCollectionSkeleton(students);
+      serv = ServerSocketChannel.open();
+      serv.bind(new InetSocketAddress("localhost", 0));
+      thread = new Thread(() -> {
+         try {
+            StudentCollectionTCPJsonRPCServer.serve(serv, skeleton, workers, queueLimit,
+                                                    readTimeout, maxConnections);
+         } catch (IOException e) {
+            // channel closed by close()
+         }
+      }, "test server");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   int getPort() throws IOException {
+      return ((InetSocketAddress)serv.getLocalAddress()).getPort();
+   }
+
+   public void close() throws IOException {
+      serv.close();
+      try {
+         thread.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -2,8 +2,12 @@ import org.json.JSONString;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.LinkedHashMap;
 import java.util.Vector;
-import java.util.Enumeration;
 import java.io.Serializable;
 
 /**
@@ -25,8 +29,16 @@ public class Group extends Object implements JSONString, Serializable {
    // serialver -classpath classes:lib/json.jar ser321.serialize.Group
    private static final long serialVersionUID = 6982142948226029575L;
 
+   // the serialized form is still the name and a Vector of the users, so
+   // groups serialized before the users were kept by id still load
+   private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("name", String.class),
+      new ObjectStreamField("users", Vector.class) };
+
    private String name; // the name of this group
-   private Vector<User> users = new Vector<User>(); // the members of this group
+   // the members of this group by id, in the order they were added
+   private transient LinkedHashMap<String, User> users =
+      new LinkedHashMap<String, User>();
 
    public Group() {
       this.name = "unknown";
@@ -43,11 +55,12 @@ public class Group extends Object implements JSONString, Serializable {
          }
          System.out.println("");
          name = obj.getString("name");
-         users = new Vector<User>();
+         users = new LinkedHashMap<String, User>();
          for (int i=0; i< names.length; i++){
             if(!names[i].equals("name")){
                User aUser = new User((JSONObject)obj.getJSONObject(names[i]));
-               users.add(aUser);
+               if (!users.containsKey(aUser.getId()))
+                  users.put(aUser.getId(), aUser);
             }
          }
          in.close();
@@ -60,8 +73,7 @@ public class Group extends Object implements JSONString, Serializable {
       String ret;
       JSONObject obj = new JSONObject();
       obj.put("name",name);
-      for (Enumeration<User> e = users.elements(); e.hasMoreElements();){
-         User usr = (User)e.nextElement();
+      for (User usr : users.values()){
          obj.put(usr.getId(),usr.toJSONObject());
       }
       ret = obj.toString();
@@ -84,13 +96,8 @@ public class Group extends Object implements JSONString, Serializable {
    * @param pwd Is a String specifying password for user.
    */
    public void addUserToGroup(String id, String pwd) {
-      boolean found = false;
-      for (int i = 0; i<users.size(); i++) {
-         if ((users.elementAt(i)).getId().equals(id))
-            found = true;
-      }
-      if (!found)
-         users.addElement(new User(id,pwd));
+      if (!users.containsKey(id))
+         users.put(id, new User(id,pwd));
    }
 
   /**
@@ -99,11 +106,7 @@ public class Group extends Object implements JSONString, Serializable {
    * @return The vector of userId strings.
    */
    public Vector<String> getUserNames() {
-      Vector<String> ret = new Vector<String>();
-      for (Enumeration e = users.elements() ; e.hasMoreElements() ;) {
-         ret.addElement(((User)e.nextElement()).getId());
-      }
-      return ret;
+      return new Vector<String>(users.keySet());
    }
 
   /**
@@ -116,14 +119,8 @@ public class Group extends Object implements JSONString, Serializable {
    * otherwise return false.
    */
    public boolean isMember(String id, String pwd) {
-      boolean match = false;
-      for (Enumeration e = users.elements() ; e.hasMoreElements() ;) {
-         if(((User)e.nextElement()).check(id,pwd)){
-            match = true;
-            break;
-         }
-      }
-      return match;
+      User user = users.get(id);
+      return user != null && user.check(id,pwd);
    }
 
   /**
@@ -131,10 +128,33 @@ public class Group extends Object implements JSONString, Serializable {
    */
    public void printGroup(){
       System.out.print("Group: "+name+" has users: ");
-      for (Enumeration e = users.elements() ; e.hasMoreElements() ;) {
-         System.out.print(((User)e.nextElement()).getId()+", ");
+      for (String id : users.keySet()) {
+         System.out.print(id+", ");
       }
       System.out.println();
    }
 
+   private void writeObject(ObjectOutputStream out) throws IOException {
+      ObjectOutputStream.PutField fields = out.putFields();
+      fields.put("name", name);
+      fields.put("users", new Vector<User>(users.values()));
+      out.writeFields();
+   }
+
+   @SuppressWarnings("unchecked")
+   private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+      ObjectInputStream.GetField fields = in.readFields();
+      name = (String) fields.get("name", null);
+      Vector<User> list = (Vector<User>) fields.get("users", null);
+      users = new LinkedHashMap<String, User>();
+      if (list != null) {
+         for (User user : list) {
+            // the first one with an id counts, like in addUserToGroup
+            if (!users.containsKey(user.getId()))
+               users.put(user.getId(), user);
+         }
+      }
+   }
+
 }
@@ -1,8 +1,10 @@
+import java.util.LinkedHashMap;
 import java.util.Vector;
-import java.util.Enumeration;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.File;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 
@@ -20,8 +22,18 @@ import java.io.ObjectInputStream;
  */
 public class GroupImpl implements Group, Serializable {
 
+   // what serialver gave before users were kept by id, so groups saved then still load
+   private static final long serialVersionUID = -3163804362796571868L;
+
+   // the serialized form is still the name and a Vector of the users
+   private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("name", String.class),
+      new ObjectStreamField("users", Vector.class) };
+
    private String name;
-   private Vector<User> users = new Vector<User>();
+   // users by id, in the order they were added
+   private transient LinkedHashMap<String, User> users =
+      new LinkedHashMap<String, User>();
 
    public GroupImpl(String name) {
       this.name = name;
@@ -32,7 +44,7 @@ public class GroupImpl implements Group, Serializable {
          File outFile = new File("users.ser");
          ObjectOutputStream os =
             new ObjectOutputStream(new FileOutputStream(outFile));
-         os.writeObject(users);
+         os.writeObject(new Vector<User>(users.values()));
          os.flush();
          os.close();
          System.out.println("users serialized to users.ser");
@@ -46,31 +58,39 @@ public class GroupImpl implements Group, Serializable {
    }
 
    public void addUserToGroup(String id, String pwd) {
-      boolean found = false;
-      for (int i = 0; i<users.size(); i++) {
-         if ((users.elementAt(i)).getId().equals(id))
-            found = true;
-      }
-      if (!found)
-         users.addElement(new User(id,pwd));
+      if (!users.containsKey(id))
+         users.put(id, new User(id,pwd));
    }
 
    public Vector<String> getUserNames() {
-      Vector<String> ret = new Vector<String>();
-      for (Enumeration e = users.elements() ; e.hasMoreElements() ;) {
-         ret.addElement(((User)e.nextElement()).getId());
-      }
-      return ret;
+      return new Vector<String>(users.keySet());
    }
 
    public boolean isMember(String id, String pwd) {
-      boolean match = false;
-      for (Enumeration e = users.elements() ; e.hasMoreElements() ;) {
-         if(((User)e.nextElement()).check(id,pwd)){
-            match = true;
-            break;
+      User user = users.get(id);
+      return user != null && user.check(id,pwd);
+   }
+
+   private void writeObject(ObjectOutputStream out) throws IOException {
+      ObjectOutputStream.PutField fields = out.putFields();
+      fields.put("name", name);
+      fields.put("users", new Vector<User>(users.values()));
+      out.writeFields();
+   }
+
+   @SuppressWarnings("unchecked")
+   private void readObject(ObjectInputStream in)
+      throws IOException, ClassNotFoundException {
+      ObjectInputStream.GetField fields = in.readFields();
+      name = (String) fields.get("name", null);
+      Vector<User> list = (Vector<User>) fields.get("users", null);
+      users = new LinkedHashMap<String, User>();
+      if (list != null) {
+         for (User user : list) {
+            // the first one with an id counts, like in addUserToGroup
+            if (!users.containsKey(user.getId()))
+               users.put(user.getId(), user);
          }
       }
-      return match;
    }
 }
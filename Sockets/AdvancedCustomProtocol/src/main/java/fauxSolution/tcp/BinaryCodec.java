@@ -0,0 +1,218 @@
+package fauxSolution.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * The message as tag-length-value fields. Numbers stay numbers and a byte[] value (like
+ * the image) goes in as it is, no Base64. Every value says how long it is, so a reader
+ * can skip a type it does not know.
+ *
+ * message: field*
+ * field: [ keyLength(varint), key(UTF-8), value ]
+ * value: [ type(1 byte), length(varint), bytes(length) ]
+ *
+ * varint: 7 bits per byte, lowest first, the high bit says another byte follows.
+ * Integers are zigzag encoded first (0, -1, 1, -2, ... become 0, 1, 2, 3, ...) so small
+ * negative numbers stay short too.
+ */
+public class BinaryCodec implements Codec {
+  static final byte NULL = 0;
+  static final byte FALSE = 1;
+  static final byte TRUE = 2;
+  static final byte INTEGER = 3; // varint
+  static final byte DOUBLE = 4; // 8 bytes
+  static final byte STRING = 5; // UTF-8
+  static final byte BYTES = 6; // raw
+  static final byte OBJECT = 7; // fields
+  static final byte ARRAY = 8; // values
+
+  // objects and arrays nested deeper than this are refused, the reader recurses once per level
+  static final int MAX_DEPTH = 64;
+
+  public String name() {
+    return "binary";
+  }
+
+  public byte[] encode(JSONObject message) {
+    Out out = new Out();
+    writeObject(out, message);
+    return out.toByteArray();
+  }
+
+  public JSONObject decode(byte[] bytes) {
+    try {
+      return readObject(ByteBuffer.wrap(bytes), 0);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new JSONException("Malformed binary message");
+    }
+  }
+
+  private static void writeObject(Out out, JSONObject object) {
+    for (String key : object.keySet()) {
+      out.writeWithLength(key.getBytes(StandardCharsets.UTF_8));
+      writeValue(out, object.opt(key));
+    }
+  }
+
+  private static void writeValue(Out out, Object value) {
+    if (value == null || value == JSONObject.NULL) {
+      out.write(NULL);
+      out.writeVarint(0);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TRUE : FALSE);
+      out.writeVarint(0);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      long n = ((Number) value).longValue();
+      Out number = new Out();
+      number.writeVarint((n << 1) ^ (n >> 63));
+      out.write(INTEGER);
+      out.writeWithLength(number.toByteArray());
+    } else if (value instanceof Number) {
+      out.write(DOUBLE);
+      out.writeVarint(8);
+      out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+    } else if (value instanceof byte[]) {
+      out.write(BYTES);
+      out.writeWithLength((byte[]) value);
+    } else if (value instanceof JSONObject) {
+      Out fields = new Out();
+      writeObject(fields, (JSONObject) value);
+      out.write(OBJECT);
+      out.writeWithLength(fields.toByteArray());
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      Out values = new Out();
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(values, array.opt(i));
+      }
+      out.write(ARRAY);
+      out.writeWithLength(values.toByteArray());
+    } else {
+      out.write(STRING);
+      out.writeWithLength(value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static JSONObject readObject(ByteBuffer in, int depth) {
+    if (depth > MAX_DEPTH) {
+      throw new JSONException("Message nested deeper than " + MAX_DEPTH);
+    }
+    JSONObject object = new JSONObject();
+    while (in.hasRemaining()) {
+      String key = new String(readBytes(in), StandardCharsets.UTF_8);
+      Object value = readValue(in, depth);
+      if (value != null) {
+        object.put(key, value);
+      }
+    }
+    return object;
+  }
+
+  // the next value, null for a type we do not know (it is skipped)
+  private static Object readValue(ByteBuffer in, int depth) {
+    byte type = in.get();
+    int length = readLength(in);
+    ByteBuffer value = in.slice();
+    value.limit(length);
+    in.position(in.position() + length);
+    switch (type) {
+    case NULL:
+      return JSONObject.NULL;
+    case FALSE:
+      return Boolean.FALSE;
+    case TRUE:
+      return Boolean.TRUE;
+    case INTEGER: {
+      long n = readVarint(value);
+      n = (n >>> 1) ^ -(n & 1);
+      if (n == (int) n) {
+        return (int) n;
+      }
+      return n;
+    }
+    case DOUBLE:
+      return Double.longBitsToDouble(value.getLong());
+    case STRING:
+      return new String(value.array(), value.arrayOffset() + value.position(), length, StandardCharsets.UTF_8);
+    case BYTES: {
+      byte[] bytes = new byte[length];
+      value.get(bytes);
+      return bytes;
+    }
+    case OBJECT:
+      return readObject(value, depth + 1);
+    case ARRAY: {
+      if (depth + 1 > MAX_DEPTH) {
+        throw new JSONException("Message nested deeper than " + MAX_DEPTH);
+      }
+      JSONArray array = new JSONArray();
+      while (value.hasRemaining()) {
+        Object element = readValue(value, depth + 1);
+        if (element != null) {
+          array.put(element);
+        }
+      }
+      return array;
+    }
+    default:
+      return null;
+    }
+  }
+
+  private static byte[] readBytes(ByteBuffer in) {
+    byte[] bytes = new byte[readLength(in)];
+    in.get(bytes);
+    return bytes;
+  }
+
+  private static int readLength(ByteBuffer in) {
+    long length = readVarint(in);
+    if (length < 0 || length > in.remaining()) {
+      throw new IllegalArgumentException("Bad length " + length);
+    }
+    return (int) length;
+  }
+
+  private static long readVarint(ByteBuffer in) {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      n |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new IllegalArgumentException("Varint too long");
+  }
+
+  // a ByteArrayOutputStream that also writes our varints and lengths
+  private static class Out extends ByteArrayOutputStream {
+    void writeVarint(long n) {
+      while ((n & ~0x7fL) != 0) {
+        write((int) ((n & 0x7f) | 0x80));
+        n >>>= 7;
+      }
+      write((int) n);
+    }
+
+    void writeLong(long n) {
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (n >>> shift));
+      }
+    }
+
+    // length first, then the bytes
+    void writeWithLength(byte[] bytes) {
+      writeVarint(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+  }
+}
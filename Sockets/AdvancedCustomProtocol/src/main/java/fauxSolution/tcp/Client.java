@@ -20,7 +20,7 @@ import org.json.*;
 public class Client {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-   * (optional)"min": <int>, (optional)"max":<int> }
+   * (optional)"min": <int>, (optional)"max":<int>, (optional)"binary": <bool> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image"> "data": <thing to return> }
@@ -42,12 +42,14 @@ public class Client {
   public static JSONObject image() {
     JSONObject request = new JSONObject();
     request.put("selected", 3);
+    request.put("binary", true); // we can take the png as raw bytes, saves the Base64
     return request;
   }
 
   public static JSONObject random() {
     JSONObject request = new JSONObject();
     request.put("selected", 4);
+    request.put("binary", true);
     return request;
   }
 
@@ -57,6 +59,11 @@ public class Client {
       sock = new Socket("localhost", 9000);
       OutputStream out = sock.getOutputStream();
       InputStream in = sock.getInputStream();
+      FrameDecoder frames = new FrameDecoder();
+
+      // agree on how messages are encoded before the first request
+      NetworkUtils.Send(out, Codec.JSON.encode(Codec.hello()));
+      Codec codec = Codec.picked(Codec.JSON.decode(frames.read(in)));
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -92,9 +99,9 @@ public class Client {
         }
 
         if (request != null) {
-          NetworkUtils.Send(out, JsonUtils.toByteArray(request));
-          byte[] responseBytes = NetworkUtils.Receive(in);
-          JSONObject response = JsonUtils.fromByteArray(responseBytes);
+          NetworkUtils.Send(out, codec.encode(request));
+          byte[] responseBytes = frames.read(in);
+          JSONObject response = codec.decode(responseBytes);
           if (response.has("error")) {
             System.out.println(response.getString("error"));
           } else {
@@ -105,8 +112,15 @@ public class Client {
               break;
             case (2): {
               System.out.println("Your image");
-              Base64.Decoder decoder = Base64.getDecoder();
-              byte[] bytes = decoder.decode(response.getString("data"));
+              byte[] bytes;
+              if (response.opt("data") instanceof byte[]) {
+                bytes = (byte[]) response.get("data"); // binary codec, the raw image is right in the message
+              } else if (response.optBoolean("binary")) {
+                bytes = frames.read(in); // the raw image comes in the next frame
+              } else {
+                Base64.Decoder decoder = Base64.getDecoder();
+                bytes = decoder.decode(response.getString("data"));
+              }
               ImageIcon icon = null;
               try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                 BufferedImage image = ImageIO.read(bais);
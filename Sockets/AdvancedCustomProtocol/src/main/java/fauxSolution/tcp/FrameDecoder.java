@@ -0,0 +1,82 @@
+package fauxSolution.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Per connection state for reading the length prefixed frames of NetworkUtils.
+ * Bytes arrive in whatever pieces the network hands us, the decoder keeps the half read
+ * length or payload until the rest shows up. The server feeds it from a non blocking
+ * channel with decode, a blocking client lets it read from the stream in big chunks
+ * into a buffer that is reused for every message.
+ *
+ * frame: [ length(4-byte int), payload(byte[length]) ]
+ */
+public class FrameDecoder {
+  // anything bigger than this is not a message of our protocol
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ByteBuffer header = ByteBuffer.allocate(4);
+  private ByteBuffer payload;
+  // bytes read from the stream but not decoded yet, only used by read
+  private ByteBuffer buffer;
+
+  // takes bytes from "in" until one frame is complete and returns its payload,
+  // returns null once "in" is used up without finishing a frame
+  public byte[] decode(ByteBuffer in) throws IOException {
+    if (payload == null) {
+      while (header.hasRemaining() && in.hasRemaining()) {
+        header.put(in.get());
+      }
+      if (header.hasRemaining()) {
+        return null;
+      }
+      header.flip();
+      int length = header.getInt();
+      header.clear();
+      if (length < 0 || length > MAX_FRAME_LENGTH) {
+        throw new IOException("Invalid frame length: " + length);
+      }
+      payload = ByteBuffer.allocate(length);
+    }
+    if (payload.hasRemaining() && in.hasRemaining()) {
+      int n = Math.min(payload.remaining(), in.remaining());
+      payload.put(in.array(), in.arrayOffset() + in.position(), n);
+      in.position(in.position() + n);
+    }
+    if (payload.hasRemaining()) {
+      return null;
+    }
+    byte[] frame = payload.array();
+    payload = null;
+    return frame;
+  }
+
+  // blocks until the next whole frame is read from the stream and returns its payload.
+  // One read usually brings in several small frames or a big chunk of a large one,
+  // whatever belongs to the next frame stays in the buffer for the next call.
+  public byte[] read(InputStream in) throws IOException {
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      buffer.flip();
+    }
+    byte[] frame;
+    while ((frame = decode(buffer)) == null) {
+      buffer.clear();
+      int n = in.read(buffer.array(), 0, buffer.capacity());
+      if (n < 0) {
+        buffer.limit(0);
+        if (payload != null || header.position() > 0) {
+          throw new EOFException("Connection closed in the middle of a message");
+        }
+        throw new EOFException("Connection closed");
+      }
+      buffer.limit(n);
+    }
+    return frame;
+  }
+}
@@ -0,0 +1,114 @@
+package fauxSolution.tcp;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+
+/*
+ * Keeps the image the server hands out ready to send. Reading, decoding, encoding it
+ * to png and Base64 (or with the binary codec) happens once, not for every request.
+ * The finished frames are kept as they go on the wire, a response is just a new
+ * ByteBuffer around the same bytes.
+ * If the file on disk changes (time or size) it is loaded again with the next request.
+ */
+public class ImageCache {
+  // one version of the image, never changed after it is built
+  private static class Entry {
+    final long modified;
+    final long length;
+    // {"datatype":2, "type":"image", "data":<Base64 png>} as one frame
+    final byte[] jsonFrame;
+    // {"datatype":2, "type":"image", "binary":true, "length":<n>} frame followed by a frame with the raw png
+    final byte[] binaryFrames;
+    // {"datatype":2, "type":"image", "data":<png>} with the binary codec, the png as it is
+    final byte[] tlvFrame;
+
+    Entry(long modified, long length, byte[] jsonFrame, byte[] binaryFrames, byte[] tlvFrame) {
+      this.modified = modified;
+      this.length = length;
+      this.jsonFrame = jsonFrame;
+      this.binaryFrames = binaryFrames;
+      this.tlvFrame = tlvFrame;
+    }
+  }
+
+  private final File file;
+  private volatile Entry entry;
+
+  public ImageCache(String path) {
+    file = new File(path);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  // the response frames for an image request in the codec of the client. With json the
+  // png is Base64 in the message, or comes in its own frame if the client asked for binary.
+  public ByteBuffer response(Codec codec, boolean binary) throws IOException {
+    Entry current = current();
+    if (codec == Codec.BINARY) {
+      return ByteBuffer.wrap(current.tlvFrame);
+    }
+    return ByteBuffer.wrap(binary ? current.binaryFrames : current.jsonFrame);
+  }
+
+  private Entry current() throws IOException {
+    Entry current = entry;
+    if (current == null || current.modified != file.lastModified() || current.length != file.length()) {
+      synchronized (this) {
+        current = entry;
+        if (current == null || current.modified != file.lastModified() || current.length != file.length()) {
+          current = load();
+          entry = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private Entry load() throws IOException {
+    long modified = file.lastModified();
+    long length = file.length();
+    BufferedImage img = ImageIO.read(file);
+    if (img == null) {
+      throw new IOException("Not an image: " + file.getAbsolutePath());
+    }
+    byte[] png;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      ImageIO.write(img, "png", out);
+      png = out.toByteArray();
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("datatype", 2);
+    json.put("type", "image");
+    json.put("data", Base64.getEncoder().encodeToString(png));
+    byte[] jsonFrame = NetworkUtils.Frame(Codec.JSON.encode(json)).array();
+
+    JSONObject header = new JSONObject();
+    header.put("datatype", 2);
+    header.put("type", "image");
+    header.put("binary", true);
+    header.put("length", png.length);
+    byte[] headerBytes = Codec.JSON.encode(header);
+    ByteBuffer frames = ByteBuffer.allocate(4 + headerBytes.length + 4 + png.length);
+    frames.putInt(headerBytes.length).put(headerBytes);
+    frames.putInt(png.length).put(png);
+
+    JSONObject tlv = new JSONObject();
+    tlv.put("datatype", 2);
+    tlv.put("type", "image");
+    tlv.put("data", png);
+    byte[] tlvFrame = NetworkUtils.Frame(Codec.BINARY.encode(tlv)).array();
+    System.out.println("Loaded image " + file + " (" + png.length + " bytes)");
+    return new Entry(modified, length, jsonFrame, frames.array(), tlvFrame);
+  }
+}
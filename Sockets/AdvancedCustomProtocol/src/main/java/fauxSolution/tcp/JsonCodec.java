@@ -0,0 +1,23 @@
+package fauxSolution.tcp;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/*
+ * The message as json text in UTF-8. Easy to read when debugging, but every number is
+ * written out as text and binary data has to go in as a Base64 string.
+ */
+public class JsonCodec implements Codec {
+  public String name() {
+    return "json";
+  }
+
+  public byte[] encode(JSONObject message) {
+    return message.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public JSONObject decode(byte[] bytes) {
+    return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+  }
+}
@@ -1,8 +1,10 @@
 package fauxSolution.tcp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class NetworkUtils {
   // https://mkyong.com/java/java-convert-byte-to-int-and-vice-versa/
@@ -16,40 +18,47 @@ public class NetworkUtils {
     return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | ((bytes[3] & 0xFF) << 0);
   }
 
+  // length and message go out in one write, two small writes make the socket wait for
+  // the ack of the first one (Nagle) and the peer delays that ack, about 40ms per message
   public static void Send(OutputStream out, byte... bytes) throws IOException {
-    out.write(intToBytes(bytes.length));
-    out.write(bytes);
+    out.write(Frame(bytes).array());
     out.flush();
   }
 
-  // read the bytes on the stream
-  // read the bytes on the stream
-  private static byte[] Read(InputStream in, int length) throws IOException {
-    byte[] bytes = new byte[length];
-    System.out.println("Read in bytes: " + length);
-    int bytesRead = 0;
-    try {
-      bytesRead = in.read(bytes, 0, length);
-    } catch (IOException e1) {
-      e1.printStackTrace();
-    }
-    if (bytesRead < length && bytesRead > 0) {
-      byte[] newBytes = Read(in, length-bytesRead);
-      System.arraycopy(newBytes, 0, bytes, bytesRead, newBytes.length);
+  // the same frame as Send writes, ready to be written to a non blocking channel
+  public static ByteBuffer Frame(byte... bytes) {
+    ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+    frame.putInt(bytes.length);
+    frame.put(bytes);
+    frame.flip();
+    return frame;
+  }
+
+  // reads exactly bytes.length bytes, however many reads it takes
+  private static void ReadFully(InputStream in, byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int n = in.read(bytes, offset, bytes.length - offset);
+      if (n < 0) {
+        throw new EOFException("Connection closed after " + offset + " of " + bytes.length + " bytes");
+      }
+      offset += n;
     }
-    return bytes;
   }
 
-  // first 4 bytes we read give us the length of the message we are about to receive
-  // next we call read again with the length of the actual bytes in the data we are interested in 
+  // first 4 bytes we read give us the length of the message we are about to receive,
+  // next we read exactly that many bytes. A closed connection is an EOFException instead of
+  // an empty message, a length that cannot be ours means the stream is out of sync.
+  // Connections that receive many messages should keep a FrameDecoder and use its read.
   public static byte[] Receive(InputStream in) throws IOException {
-    byte[] lengthBytes = Read(in, 4);
-    if (lengthBytes == null)
-      return new byte[0];
+    byte[] lengthBytes = new byte[4];
+    ReadFully(in, lengthBytes);
     int length = NetworkUtils.bytesToInt(lengthBytes);
-    byte[] message = Read(in, length);
-    if (message == null)
-      return new byte[0];
+    if (length < 0 || length > FrameDecoder.MAX_FRAME_LENGTH) {
+      throw new IOException("Invalid frame length: " + length);
+    }
+    byte[] message = new byte[length];
+    ReadFully(in, message);
     return message;
   }
 }
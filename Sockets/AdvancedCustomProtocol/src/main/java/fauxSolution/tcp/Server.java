@@ -1,29 +1,38 @@
 package fauxSolution.tcp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Base64;
-import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.json.*;
 
 public class Server {
   /*
-   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random> }
+   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
+   * (optional)"binary": <true if images can be sent as raw bytes> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image">, "data": <thing to return> }
    * 
+   * binary image response: {"datatype": 2, "type": "image", "binary": true,
+   * "length": <int>} followed by one more frame holding the raw png
+   * 
    * error response: {"error": <error string> }
+   * 
+   * These are the messages as json, a client may agree on the binary codec first
+   * (see Codec), then "data" of the image is the raw png and nothing else follows.
    */
 
   public static JSONObject joke() {
@@ -43,111 +52,290 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
-    JSONObject json = new JSONObject();
-    json.put("datatype", 2);
+  // the image is loaded and encoded once, then served from memory
+  private static final ImageCache images = new ImageCache("img/To-Funny-For-Words1.png");
 
-    json.put("type", "image");
+  // 1=joke, 2=quote, 3=image
+  public static int random() {
+    return ThreadLocalRandom.current().nextInt(3) + 1;
+  }
 
-    File file = new File("img/To-Funny-For-Words1.png");
-    if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
-    }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
+  public static JSONObject error(String err) {
+    JSONObject json = new JSONObject();
+    json.put("error", err);
+    return json;
+  }
+
+  // turns one request frame into the response frame(s), runs on the worker threads
+  public static ByteBuffer handle(Codec codec, byte[] messageBytes) {
+    JSONObject returnMessage;
+    try {
+      JSONObject message = codec.decode(messageBytes);
+      if (message.has("selected")) {
+        if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+          int choice = message.getInt("selected");
+          if (choice == 4) {
+            choice = random();
+          }
+          switch (choice) {
+          case (1):
+            returnMessage = joke();
+            break;
+          case (2):
+            returnMessage = quote();
+            break;
+          case (3):
+            return images.response(codec, message.optBoolean("binary"));
+          default:
+            returnMessage = error("Invalid selection: " + choice + " is not an option");
+          }
+        } else {
+          returnMessage = error("Selection must be an integer");
+        }
+      } else {
+        returnMessage = error("Invalid message received");
+      }
+    } catch (JSONException e) {
+      returnMessage = error("Invalid message received");
+    } catch (IOException e) {
+      returnMessage = error("Unable to load image: " + e.getMessage());
     }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
+
+    // we are converting the JSON object we have to a byte[]
+    return NetworkUtils.Frame(codec.encode(returnMessage));
+  }
+
+  // the first frame of a connection: a hello picks the codec, anything else is a request
+  // of a client that does not know about codecs and gets json
+  public static ByteBuffer hello(Connection conn, byte[] messageBytes) {
+    try {
+      JSONObject message = Codec.JSON.decode(messageBytes);
+      if (message.has("codecs")) {
+        conn.codec = Codec.pick(message);
+        System.out.println("Client speaks " + conn.codec.name());
+        return NetworkUtils.Frame(Codec.JSON.encode(Codec.answer(conn.codec)));
+      }
+    } catch (JSONException e) {
+      // handle answers with the error
     }
-    return error("Unable to save image to byte array");
+    conn.codec = Codec.JSON;
+    return handle(conn.codec, messageBytes);
   }
 
-  public static JSONObject random() throws IOException {
-    Random rand = new Random();
-    int random = rand.nextInt(3);
-    JSONObject json = new JSONObject();
-    if (random == 0) {
-      json = joke();
-    } else if (random == 1) {
-      json = quote();
-    } else if (random == 2) {
-      json = image();
+  /*
+   * Everything the server knows about one client: the frame decoder for what it sends us,
+   * the requests we did not get to yet and the responses that are not written out yet.
+   * Only the selector thread touches it, except the worker handing back a response.
+   */
+  static class Connection {
+    final SocketChannel channel;
+    final FrameDecoder decoder = new FrameDecoder();
+    final ArrayDeque<byte[]> requests = new ArrayDeque<byte[]>();
+    final ArrayDeque<ByteBuffer> responses = new ArrayDeque<ByteBuffer>();
+    // a worker is busy with a request of this client, the next one waits so answers stay in order
+    boolean handling = false;
+    // set by the worker answering the first frame, the workers after it see it
+    // because the requests of one connection are handed out one after the other
+    Codec codec;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
     }
-    return json;
   }
 
-  public static JSONObject error(String err) {
-    JSONObject json = new JSONObject();
-    json.put("error", err);
-    return json;
+  // responses handed back by the workers, picked up by the selector thread, without a frame
+  // when the worker failed and the client is dropped
+  static class Response {
+    final Connection connection;
+    final ByteBuffer frame;
+
+    Response(Connection connection, ByteBuffer frame) {
+      this.connection = connection;
+      this.frame = frame;
+    }
   }
 
+  // requests and responses one client may have waiting before we stop reading from it
+  private static final int MAX_PENDING = 32;
+
+  private static Selector selector;
+  private static ExecutorService workers;
+  private static final Queue<Response> done = new ConcurrentLinkedQueue<Response>();
+
+  /*
+   * One selector thread does all the reading and writing for every client, so a client
+   * sitting in its menu does not block anyone. Building the responses (e.g. the image)
+   * happens on a small pool of workers, one request per client at a time.
+   */
   public static void main(String[] args) throws IOException {
-    ServerSocket serv = null;
+    int port = 9000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (args.length > 0) {
+      port = Integer.parseInt(args[0]);
+    }
+    if (args.length > 1) {
+      threads = Integer.parseInt(args[1]);
+    }
+    if (!images.getFile().exists()) {
+      System.err.println("Cannot find file: " + images.getFile().getAbsolutePath());
+      System.exit(-1);
+    }
+    images.response(Codec.JSON, false); // load it now rather than with the first request
+    workers = Executors.newFixedThreadPool(threads);
+    ServerSocketChannel serv = null;
     try {
-      serv = new ServerSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      selector = Selector.open();
+      serv = ServerSocketChannel.open();
+      serv.bind(new InetSocketAddress(port));
+      serv.configureBlocking(false);
+      serv.register(selector, SelectionKey.OP_ACCEPT);
+      System.out.println("Server ready for clients on port " + port);
+      ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
       while (true) {
-        Socket sock = null;
-        try {
-          sock = serv.accept(); // blocking wait
-          OutputStream out = sock.getOutputStream();
-          InputStream in = sock.getInputStream();
-          while (true) {
-            byte[] messageBytes = NetworkUtils.Receive(in);
-            JSONObject message = JsonUtils.fromByteArray(messageBytes);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            // we are converting the JSON object we have to a byte[]
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(out, output);
+        selector.select();
+        Response response;
+        while ((response = done.poll()) != null) {
+          queueResponse(response);
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
           }
-        } catch (Exception e) {
-          System.out.println("Client disconnect");
-        } finally {
-          if (sock != null) {
-            sock.close();
+          if (key.isAcceptable()) {
+            accept(serv);
+            continue;
+          }
+          Connection conn = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(conn, readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(conn);
+            }
+          } catch (IOException e) {
+            disconnect(conn);
           }
         }
       }
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
+      workers.shutdownNow();
       if (serv != null) {
         serv.close();
       }
     }
   }
-}
\ No newline at end of file
+
+  private static void accept(ServerSocketChannel serv) throws IOException {
+    SocketChannel channel = serv.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    System.out.println("Client connected: " + channel.getRemoteAddress());
+  }
+
+  private static void read(Connection conn, ByteBuffer readBuffer) throws IOException {
+    readBuffer.clear();
+    int n = conn.channel.read(readBuffer);
+    if (n < 0) {
+      throw new EOFException();
+    }
+    readBuffer.flip();
+    byte[] frame;
+    while ((frame = conn.decoder.decode(readBuffer)) != null) {
+      conn.requests.add(frame);
+    }
+    dispatch(conn);
+    updateInterest(conn);
+  }
+
+  // hands the next request of this client to a worker, unless one is already working on it
+  private static void dispatch(Connection conn) {
+    if (conn.handling || conn.requests.isEmpty()) {
+      return;
+    }
+    conn.handling = true;
+    byte[] request = conn.requests.poll();
+    workers.execute(() -> {
+      ByteBuffer frame = null;
+      try {
+        frame = conn.codec == null ? hello(conn, request) : handle(conn.codec, request);
+      } catch (Throwable e) {
+        // no answer, the selector thread drops the client instead of waiting on it forever
+        System.out.println("Could not answer request: " + e);
+      } finally {
+        done.add(new Response(conn, frame));
+        selector.wakeup();
+      }
+    });
+  }
+
+  private static void queueResponse(Response response) {
+    Connection conn = response.connection;
+    conn.handling = false;
+    if (!conn.channel.isOpen()) {
+      return;
+    }
+    if (response.frame == null) {
+      disconnect(conn);
+      return;
+    }
+    conn.responses.add(response.frame);
+    try {
+      write(conn);
+    } catch (IOException e) {
+      disconnect(conn);
+      return;
+    }
+    dispatch(conn);
+    updateInterest(conn);
+  }
+
+  // writes as much as the socket takes, what is left waits for the channel to be writable again
+  private static void write(Connection conn) throws IOException {
+    while (!conn.responses.isEmpty()) {
+      ByteBuffer frame = conn.responses.peek();
+      conn.channel.write(frame);
+      if (frame.hasRemaining()) {
+        break;
+      }
+      conn.responses.poll();
+    }
+    updateInterest(conn);
+  }
+
+  // a client that keeps sending requests without reading the answers is not read from
+  // until its backlog is worked off, so it cannot make us hold an unbounded pile of frames
+  private static void updateInterest(Connection conn) {
+    SelectionKey key = conn.channel.keyFor(selector);
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    int ops = 0;
+    if (conn.requests.size() + conn.responses.size() < MAX_PENDING) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (!conn.responses.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(ops);
+  }
+
+  private static void disconnect(Connection conn) {
+    System.out.println("Client disconnect");
+    conn.requests.clear();
+    conn.responses.clear();
+    try {
+      conn.channel.close();
+    } catch (IOException e) {
+      // already gone
+    }
+  }
+}
@@ -5,7 +5,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Base64;
@@ -22,7 +21,7 @@ import org.json.*;
 public class Client {
 	  /*
 	   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-	   * (optional)"min": <int>, (optional)"max":<int> }
+	   * (optional)"min": <int>, (optional)"max":<int>, (optional)"binary": <bool> }
 	   * 
 	   * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke", "quote", "image"> "data": <thing to
 	   * return> }
@@ -44,21 +43,32 @@ public static JSONObject quote() {
 public static JSONObject image() {
   JSONObject request = new JSONObject();
   request.put("selected", 3);
+  request.put("binary", true); // we can take the png as raw bytes, saves the Base64
   return request;
 }
 
 public static JSONObject random() {
   JSONObject request = new JSONObject();
   request.put("selected", 4);
+  request.put("binary", true);
   return request;
 }
 
+  // agrees with the server on how messages are encoded
+  private static Codec hello(ReliableSocket sock, InetAddress address, int port) throws IOException {
+    NetworkUtils.Send(sock, address, port, Codec.JSON.encode(Codec.hello()));
+    return Codec.picked(Codec.JSON.decode(NetworkUtils.Receive(sock).Payload));
+  }
+
   public static void main(String[] args) throws IOException {
-    DatagramSocket sock;
+    ReliableSocket sock;
     try {
       InetAddress address = InetAddress.getByName("localhost");
       int port = 9000;
-      sock = new DatagramSocket();
+      sock = new ReliableSocket();
+
+      // agree on how messages are encoded before the first request
+      Codec codec = hello(sock, address, port);
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -88,9 +98,15 @@ public static JSONObject random() {
         }
 
         if (request != null) {
-          NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
+          NetworkUtils.Send(sock, address, port, codec.encode(request));
           NetworkUtils.Tuple responseTuple = NetworkUtils.Receive(sock);
-          JSONObject response = JsonUtils.fromByteArray(responseTuple.Payload);
+          if (codec != Codec.JSON && Codec.isUnknown(responseTuple.Payload)) {
+            // we were quiet for too long and the server forgot which codec we picked
+            codec = hello(sock, address, port);
+            NetworkUtils.Send(sock, address, port, codec.encode(request));
+            responseTuple = NetworkUtils.Receive(sock);
+          }
+          JSONObject response = codec.decode(responseTuple.Payload);
           if (response.has("error")) {
               System.out.println(response.getString("error"));
             } else {
@@ -101,8 +117,15 @@ public static JSONObject random() {
                 break;
               case (2): {
               	  System.out.println("Your image");
-                Base64.Decoder decoder = Base64.getDecoder();
-                byte[] bytes = decoder.decode(response.getString("data"));
+                byte[] bytes;
+                if (response.opt("data") instanceof byte[]) {
+                  bytes = (byte[]) response.get("data"); // binary codec, the raw image is right in the message
+                } else if (response.optBoolean("binary")) {
+                  bytes = NetworkUtils.Receive(sock).Payload; // the raw image comes as the next message
+                } else {
+                  Base64.Decoder decoder = Base64.getDecoder();
+                  bytes = decoder.decode(response.getString("data"));
+                }
                 ImageIcon icon = null;
                 try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                   BufferedImage image = ImageIO.read(bais);
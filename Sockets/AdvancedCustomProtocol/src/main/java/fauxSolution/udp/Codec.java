@@ -0,0 +1,97 @@
+package fauxSolution.udp;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Turns our messages into bytes and back. Client and server agree on one with the
+ * first message a client sends:
+ *
+ * hello (always json): {"codecs": [<names the client can speak, best first>]}
+ * answer (always json): {"codec": <name the server picked>}
+ *
+ * Everything after that uses the picked codec. A client that does not say hello just
+ * sends its first request, the server then sticks to json for it.
+ *
+ * The server forgets a client that was quiet for a while. If the first request it sees
+ * from a client is not json, it cannot know which codec that is and answers
+ * unknown (always json): {"error": <error string>, "hello": true}
+ * The client then says hello again and repeats the request.
+ */
+public interface Codec {
+  Codec JSON = new JsonCodec();
+  Codec BINARY = new BinaryCodec();
+
+  // all codecs we know, best first
+  Codec[] ALL = { BINARY, JSON };
+
+  String name();
+
+  byte[] encode(JSONObject message);
+
+  // throws JSONException if the bytes are not a message of this codec
+  JSONObject decode(byte[] bytes);
+
+  static Codec forName(String name) {
+    for (Codec codec : ALL) {
+      if (codec.name().equals(name)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  static JSONObject hello() {
+    JSONArray names = new JSONArray();
+    for (Codec codec : ALL) {
+      names.put(codec.name());
+    }
+    JSONObject hello = new JSONObject();
+    hello.put("codecs", names);
+    return hello;
+  }
+
+  // the first codec of the hello we speak as well, json if there is none
+  static Codec pick(JSONObject hello) {
+    JSONArray names = hello.optJSONArray("codecs");
+    for (int i = 0; names != null && i < names.length(); i++) {
+      Codec codec = forName(names.optString(i));
+      if (codec != null) {
+        return codec;
+      }
+    }
+    return JSON;
+  }
+
+  static JSONObject answer(Codec codec) {
+    JSONObject answer = new JSONObject();
+    answer.put("codec", codec.name());
+    return answer;
+  }
+
+  static JSONObject unknown() {
+    JSONObject unknown = new JSONObject();
+    unknown.put("error", "Unknown client, say hello first");
+    unknown.put("hello", true);
+    return unknown;
+  }
+
+  // whether the server answered with unknown() instead of in our codec
+  static boolean isUnknown(byte[] bytes) {
+    try {
+      return JSON.decode(bytes).optBoolean("hello");
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  // the codec the server answered with
+  static Codec picked(JSONObject answer) {
+    Codec codec = forName(answer.optString("codec"));
+    if (codec == null) {
+      throw new JSONException("Server picked an unknown codec: " + answer);
+    }
+    return codec;
+  }
+}
@@ -0,0 +1,115 @@
+package fauxSolution.udp;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+
+/*
+ * Keeps the image the server hands out ready to send. Reading, decoding, encoding it
+ * to png and Base64 (or with the binary codec) happens once, not for every request.
+ * The finished messages are kept as they are handed to NetworkUtils.Send, so a response
+ * does not build anything.
+ * If the file on disk changes (time or size) it is loaded again with the next request.
+ */
+public class ImageCache {
+  // one version of the image, never changed after it is built
+  private static class Entry {
+    final long modified;
+    final long length;
+    // {"datatype":2, "type":"image", "data":<Base64 png>}
+    final byte[] json;
+    // {"datatype":2, "type":"image", "binary":true, "length":<n>}, sent before the raw png
+    final byte[] binaryHeader;
+    final byte[] png;
+    // {"datatype":2, "type":"image", "data":<png>} with the binary codec, the png as it is
+    final byte[] tlv;
+
+    Entry(long modified, long length, byte[] json, byte[] binaryHeader, byte[] png, byte[] tlv) {
+      this.modified = modified;
+      this.length = length;
+      this.json = json;
+      this.binaryHeader = binaryHeader;
+      this.png = png;
+      this.tlv = tlv;
+    }
+  }
+
+  private final File file;
+  private volatile Entry entry;
+
+  public ImageCache(String path) {
+    file = new File(path);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  // the messages answering an image request in the codec of the client, all of the same
+  // version of the file. With json that is the Base64 image, or if the client asked for
+  // binary a header announcing the raw png followed by the png itself. The binary codec
+  // has the raw png right in its one message. The caller must not change them.
+  public byte[][] response(Codec codec, boolean binary) throws IOException {
+    Entry current = current();
+    if (codec == Codec.BINARY) {
+      return new byte[][] { current.tlv };
+    }
+    if (binary) {
+      return new byte[][] { current.binaryHeader, current.png };
+    }
+    return new byte[][] { current.json };
+  }
+
+  private Entry current() throws IOException {
+    Entry current = entry;
+    if (current == null || current.modified != file.lastModified() || current.length != file.length()) {
+      synchronized (this) {
+        current = entry;
+        if (current == null || current.modified != file.lastModified() || current.length != file.length()) {
+          current = load();
+          entry = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private Entry load() throws IOException {
+    long modified = file.lastModified();
+    long length = file.length();
+    BufferedImage img = ImageIO.read(file);
+    if (img == null) {
+      throw new IOException("Not an image: " + file.getAbsolutePath());
+    }
+    byte[] png;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      ImageIO.write(img, "png", out);
+      png = out.toByteArray();
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("datatype", 2);
+    json.put("type", "image");
+    json.put("data", Base64.getEncoder().encodeToString(png));
+
+    JSONObject header = new JSONObject();
+    header.put("datatype", 2);
+    header.put("type", "image");
+    header.put("binary", true);
+    header.put("length", png.length);
+
+    JSONObject tlv = new JSONObject();
+    tlv.put("datatype", 2);
+    tlv.put("type", "image");
+    tlv.put("data", png);
+    System.out.println("Loaded image " + file + " (" + png.length + " bytes)");
+    return new Entry(modified, length, Codec.JSON.encode(json), Codec.JSON.encode(header), png,
+        Codec.BINARY.encode(tlv));
+  }
+}
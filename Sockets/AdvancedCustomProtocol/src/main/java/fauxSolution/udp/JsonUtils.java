@@ -1,14 +0,0 @@
-package fauxSolution.udp;
-
-import org.json.JSONObject;
-
-public class JsonUtils {
-  public static JSONObject fromByteArray(byte[] bytes) {
-    String jsonString = new String(bytes);
-    return new JSONObject(jsonString);
-  }
-  
-  public static byte[] toByteArray(JSONObject object) {
-    return object.toString().getBytes();
-  }
-}
@@ -0,0 +1,121 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Sends messages of all sizes between two ReliableSockets in both directions at once while
+ * they drop packets on purpose, and checks that every message arrives once and intact.
+ *
+ * java fauxSolution.udp.LossCheck [rounds]
+ *
+ * Without -Dudp.loss it drops 10% of the packets, without -Dudp.packetSize it uses ethernet
+ * sized packets so even the smaller messages are split up. Exits with 1 if anything was lost,
+ * changed or arrived twice.
+ */
+public class LossCheck {
+  // a message that gives up after its tries never arrives, the other side would wait forever
+  static final long ROUND_TIMEOUT_MS = 60000;
+
+  // small, exactly one packet, one byte more, many packets, many windows
+  static int[] sizes(int packetSize) {
+    int payload = packetSize - NetworkUtils.DATA_HEADER;
+    return new int[] { 4, 100, payload, payload + 1, 100 * 1000, 3 * 1024 * 1024 };
+  }
+
+  // random bytes, the first four are the index so the receiver knows which one it got
+  static byte[][] messages(int[] sizes, long seed) {
+    Random random = new Random(seed);
+    byte[][] messages = new byte[sizes.length][];
+    for (int i = 0; i < sizes.length; i++) {
+      messages[i] = new byte[sizes[i]];
+      random.nextBytes(messages[i]);
+      ByteBuffer.wrap(messages[i]).putInt(i);
+    }
+    return messages;
+  }
+
+  // sends all messages to the other socket and takes as many from it, true if they all match
+  static boolean exchange(ReliableSocket from, ReliableSocket to, byte[][] sent, byte[][] expected)
+      throws IOException {
+    InetAddress localhost = InetAddress.getLoopbackAddress();
+    CompletableFuture<?>[] done = new CompletableFuture<?>[sent.length];
+    for (int i = 0; i < sent.length; i++) {
+      done[i] = from.sendAsync(localhost, to.getLocalPort(), sent[i]);
+    }
+    Map<Integer, byte[]> received = new HashMap<Integer, byte[]>();
+    boolean ok = true;
+    for (int i = 0; i < expected.length; i++) {
+      byte[] message = from.receive().Payload;
+      int index = ByteBuffer.wrap(message).getInt();
+      if (index < 0 || index >= expected.length || received.put(index, message) != null) {
+        System.out.println("Unexpected message " + index + " (" + message.length + " bytes)");
+        ok = false;
+      } else if (!Arrays.equals(expected[index], message)) {
+        System.out.println("Message " + index + " (" + expected[index].length + " bytes) arrived changed");
+        ok = false;
+      }
+    }
+    CompletableFuture.allOf(done).join();
+    return ok;
+  }
+
+  static CompletableFuture<Boolean> exchangeAsync(ReliableSocket from, ReliableSocket to, byte[][] sent,
+      byte[][] expected) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return exchange(from, to, sent, expected);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    if (System.getProperty("udp.loss") == null) {
+      System.setProperty("udp.loss", "0.1");
+    }
+    if (System.getProperty("udp.packetSize") == null) {
+      System.setProperty("udp.packetSize", String.valueOf(ReliableSocket.DEFAULT_PACKET_SIZE));
+    }
+    int[] sizes = sizes(Integer.getInteger("udp.packetSize"));
+    boolean ok = true;
+    try (ReliableSocket a = new ReliableSocket(); ReliableSocket b = new ReliableSocket()) {
+      for (int round = 0; round < rounds; round++) {
+        long start = System.currentTimeMillis();
+        byte[][] toB = messages(sizes, round);
+        byte[][] toA = messages(sizes, -round - 1);
+        CompletableFuture<Boolean> atA = exchangeAsync(a, b, toB, toA);
+        CompletableFuture<Boolean> atB = exchangeAsync(b, a, toA, toB);
+        String result;
+        try {
+          CompletableFuture.allOf(atA, atB).get(ROUND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+          ok = atA.get() && atB.get();
+          result = ok ? "ok" : "FAILED";
+        } catch (ExecutionException e) {
+          ok = false;
+          result = "FAILED, " + e.getCause();
+        } catch (TimeoutException e) {
+          ok = false;
+          result = "FAILED, messages missing after " + ROUND_TIMEOUT_MS + " ms";
+        }
+        System.out.println("Round " + (round + 1) + ": " + result + " in " + (System.currentTimeMillis() - start)
+            + " ms at " + System.getProperty("udp.loss") + " loss");
+        if (!ok) {
+          break;
+        }
+      }
+    }
+    System.exit(ok ? 0 : 1);
+  }
+}
@@ -1,10 +1,9 @@
 package fauxSolution.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 public class NetworkUtils {
   // https://mkyong.com/java/java-convert-byte-to-int-and-vice-versa/
@@ -18,116 +17,148 @@ public class NetworkUtils {
     return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | ((bytes[3] & 0xFF) << 0);
   }
 
-  /* packet (1024 max)
-   * [ 
-   *   totalPackets(4-byte int), 
-   *   currentPacket#(4-byte int), 
+  public static final byte DATA = 0;
+  public static final byte ACK = 1;
+
+  /* data packet (as big as the path allows, see ReliableSocket)
+   * [
+   *   type(1 byte, DATA),
+   *   messageId(4-byte int), -- every message a sender sends gets a new one
+   *   totalPackets(4-byte int),
+   *   currentPacket#(4-byte int),
+   *   messageLength(4-byte int), -- so the receiver can allocate the whole message with the first packet
+   *   offset(4-byte int), -- where this payload goes in the message
    *   payloadLength(4-byte int),
    *   payload(byte[])
    * ]
    */
-  public static void Send(DatagramSocket sock, InetAddress addr, int port, byte... bytes) throws IOException {
-    int maxBufferLength = 1024 - 12;
-    int packetsTotal = bytes.length / maxBufferLength + 1;
-    
-    int offset = 0;
-    int packetNum = 0;
-    while (offset < bytes.length) {
-      int bytesLeftToSend = bytes.length - offset;
-      int length = Math.min(maxBufferLength, bytesLeftToSend);
-      
-      byte[] totalBytes = NetworkUtils.intToBytes(packetsTotal);
-      byte[] currentBytes = NetworkUtils.intToBytes(packetNum);
-      byte[] lengthBytes = NetworkUtils.intToBytes(length);
-     
-      byte[] buffer = new byte[12 + length];
-      System.arraycopy(totalBytes, 0, buffer, 0, 4);
-      System.arraycopy(currentBytes, 0, buffer, 4, 4);
-      System.arraycopy(lengthBytes, 0, buffer, 8, 4);
-      System.arraycopy(bytes, offset, buffer, 12, length);
-      
-      DatagramPacket packet = new DatagramPacket(buffer, buffer.length, addr, port);
-      sock.send(packet);
-      
-      packetNum++;
-      offset += length;
-    }
+  public static final int DATA_HEADER = 25;
+  // every packet but the last of a message carries the same payload, at least this big
+  // unless the whole message fits in one packet (see ReliableSocket.MIN_PACKET_SIZE)
+  static final int MIN_PAYLOAD = ReliableSocket.MIN_PACKET_SIZE - DATA_HEADER;
+
+  /* ack packet, sent back for every data packet that arrives
+   * [
+   *   type(1 byte, ACK),
+   *   messageId(4-byte int),
+   *   received(4-byte int), -- all packets before this number arrived
+   *   mask(8-byte long) -- bit i set: packet received+1+i arrived too, the missing ones are the holes to resend
+   * ]
+   */
+  public static final int ACK_LENGTH = 17;
+
+  // Send and Receive now need state (what was acked, what is half assembled), see ReliableSocket
+  public static void Send(ReliableSocket sock, InetAddress addr, int port, byte... bytes) throws IOException {
+    sock.send(addr, port, bytes);
+  }
+
+  public static Tuple Receive(ReliableSocket sock) throws IOException {
+    return sock.receive();
+  }
+
+  // writes header and payload into "packet" (cleared first) and flips it, ready to send
+  public static void putData(ByteBuffer packet, int messageId, int total, int current, byte[] message, int offset,
+      int length) {
+    packet.clear();
+    packet.put(DATA).putInt(messageId).putInt(total).putInt(current).putInt(message.length).putInt(offset)
+        .putInt(length);
+    packet.put(message, offset, length);
+    packet.flip();
+  }
+
+  public static void putAck(ByteBuffer packet, int messageId, int received, long mask) {
+    packet.clear();
+    packet.put(ACK).putInt(messageId).putInt(received).putLong(mask);
+    packet.flip();
   }
 
+  /*
+   * The header of a packet that was just received into a buffer. The payload is not copied,
+   * after the constructor the buffer's position is at the start of it.
+   */
   static class Packet {
-    /* packet (1024 max)
-     * [ 
-     *   totalPackets(4-byte int), 
-     *   currentPacket#(4-byte int), 
-     *   payloadLength(4-byte int),
-     *   payload(byte[])
-     * ]
-     */
-    public final DatagramPacket Packet;
+    public final InetSocketAddress From;
+    public final byte Type;
+    public final int MessageId;
+    // data packets
     public final int Total;
     public final int Current;
+    public final int MessageLength;
+    public final int Offset;
     public final int Length;
-    public final byte[] Payload;
-    
-    public Packet(DatagramPacket packet) {
-      Packet = packet;
-      
-      byte[] totalBytes = new byte[4];
-      System.arraycopy(packet.getData(), 0, totalBytes, 0, 4);
-      Total = NetworkUtils.bytesToInt(totalBytes);
-      
-      byte[] currentBytes = new byte[4];
-      System.arraycopy(packet.getData(), 4, currentBytes, 0, 4);
-      Current = NetworkUtils.bytesToInt(currentBytes);
-      
-      byte[] lengthBytes = new byte[4];
-      System.arraycopy(packet.getData(), 8, lengthBytes, 0, 4);
-      Length = NetworkUtils.bytesToInt(lengthBytes);
-      
-      int payloadLength = packet.getLength() - 12;
-      Payload = new byte[payloadLength];
-      System.arraycopy(packet.getData(), 12, Payload, 0, payloadLength);
+    // ack packets
+    public final int Received;
+    public final long Mask;
+
+    // throws IOException if the datagram is not one of ours
+    public Packet(InetSocketAddress from, ByteBuffer buffer) throws IOException {
+      From = from;
+      if (buffer.remaining() < 5) {
+        throw new IOException("Packet too short");
+      }
+      Type = buffer.get();
+      MessageId = buffer.getInt();
+      if (Type == DATA && buffer.remaining() >= DATA_HEADER - 5) {
+        Total = buffer.getInt();
+        Current = buffer.getInt();
+        MessageLength = buffer.getInt();
+        Offset = buffer.getInt();
+        Length = buffer.getInt();
+        if (Total <= 0 || Current < 0 || Current >= Total || Length != buffer.remaining() || Offset < 0
+            || MessageLength < 0 || Offset > MessageLength - Length
+            || !fragmentOf(Total, Current, MessageLength, Offset, Length)) {
+          throw new IOException("Malformed data packet");
+        }
+        Received = 0;
+        Mask = 0;
+      } else if (Type == ACK && buffer.remaining() == ACK_LENGTH - 5) {
+        Received = buffer.getInt();
+        Mask = buffer.getLong();
+        Total = 0;
+        Current = 0;
+        MessageLength = 0;
+        Offset = 0;
+        Length = 0;
+      } else {
+        throw new IOException("Unknown packet");
+      }
+    }
+  }
+
+  // whether the header describes a packet of a message cut up the way ReliableSocket does it:
+  // packet i holds the bytes from i * payload on, so the number of packets follows from the
+  // message length. The receiver allocates by the header, it must not be able to ask for more.
+  static boolean fragmentOf(int total, int current, int messageLength, int offset, int length) {
+    if (total == 1) {
+      return offset == 0 && length == messageLength;
     }
+    int payload;
+    if (current < total - 1) {
+      payload = length;
+      if (offset != (long) current * payload) {
+        return false;
+      }
+    } else {
+      if (offset + length != messageLength || offset % current != 0) {
+        return false;
+      }
+      payload = offset / current;
+      if (length > payload) {
+        return false;
+      }
+    }
+    return payload >= MIN_PAYLOAD && total == (messageLength + (long) payload - 1) / payload;
   }
-  
+
   static class Tuple {
     public final InetAddress Address;
     public final int Port;
     public final byte[] Payload;
-    
+
     public Tuple(InetAddress address, int port, byte[] payload) {
       Address = address;
       Port = port;
       Payload = payload;
     }
   }
-  
-  private static Packet Read(DatagramSocket sock, int length) throws IOException {
-    byte[] buff = new byte[length];
-    DatagramPacket request = new DatagramPacket(buff, length);
-    sock.receive(request);
-    return new Packet(request);
-  }
- 
-  // reading in all the packets and adding them to "packets"
-  // collecting packets as long as the size of the packets is smaller then the total ones we are supposed to receice
-  public static Tuple Receive(DatagramSocket sock) throws IOException {
-    ArrayList<Packet> packets = new ArrayList<Packet>();
-    do {
-      packets.add(Read(sock, 1024));
-    } while (packets.size() > 0 && packets.size() < packets.get(0).Total);
-    
-    packets.sort((p1, p2) -> p1.Current - p2.Current); // sorting the packages by package number
-    int totalBufferLength = packets.stream().mapToInt((p)->p.Length).sum(); // summing up how long the payload is
-    byte[] buffer = new byte[totalBufferLength]; // creating big enough buffer
-    int offset = 0;
-    
-    // interating through all packets, adding the paylod of each package to the buffer, make sure offset is used to not overwrite things
-    for(var p : packets) {
-      System.arraycopy(p.Payload, 0, buffer, offset, p.Length);
-      offset += p.Length;
-    }
-    DatagramPacket first = packets.get(0).Packet;
-    return new Tuple(first.getAddress(), first.getPort(), buffer);
-  }
 }
@@ -0,0 +1,607 @@
+package fauxSolution.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Makes the fragments of NetworkUtils reliable. Every message gets an id, the receiver
+ * acknowledges every data packet with what it has so far (all packets up to a number plus
+ * a bit mask of the ones after it) and the sender resends what is missing.
+ *
+ * Sending: at most "window" packets per peer are out without an ack. The window grows with
+ * every ack and is halved when packets get lost (like TCP does it), so a sender does not
+ * flood a slow or lossy path. A packet is resent when its timeout (taken from the measured
+ * round trip time to that peer) runs out, or right away when three later packets were
+ * acked but it was not.
+ *
+ * Receiving: fragments are collected per sender and message id, so messages of different
+ * clients do not get mixed up. Half received messages are dropped after a while of silence
+ * instead of blocking forever.
+ *
+ * Packets are as big as the network allows without IP fragmenting them: the MTU of the
+ * interface the destination is reached through (for localhost that is nearly 64 KB), or
+ * a fixed size with -Dudp.packetSize=<bytes>. The receiver needs no setting, every packet
+ * says where its payload goes, and the payload is copied straight from the receive buffer
+ * into the one array of the whole message.
+ *
+ * One thread of its own does all the sending and receiving on the channel, so any number
+ * of threads can call send, sendAsync and receive at the same time. Messages to different
+ * peers (and several to the same one) are in flight together.
+ *
+ * For trying it out under loss start with -Dudp.loss=0.05, then 5% of all packets this
+ * socket sends are dropped on purpose.
+ */
+public class ReliableSocket implements Closeable {
+  // biggest payload of an IPv4 UDP datagram
+  static final int MAX_DATAGRAM = 65507;
+  // when the MTU cannot be found out: ethernet, 1500 minus IP and UDP headers
+  static final int DEFAULT_PACKET_SIZE = 1472;
+  static final int MIN_PACKET_SIZE = 548;
+  // the ack mask covers 64 packets after "received", so never more than that in flight
+  static final int MAX_WINDOW = 64;
+  // we ask for socket buffers this big, the OS may give us less (see windowBytes)
+  static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+  static final int INITIAL_WINDOW = 4;
+  static final int MAX_TRIES = 10;
+  static final long MIN_RTO_MS = 10;
+  static final long MAX_RTO_MS = 2000;
+  static final long REASSEMBLY_TIMEOUT_MS = 10000;
+  // what we learned about a peer (window, round trip) is forgotten after this long
+  static final long PEER_TIMEOUT_MS = 60000;
+  static final int MAX_MESSAGE = 64 * 1024 * 1024;
+  // bytes of half received messages we hold for one sender
+  static final long MAX_INCOMING_PER_PEER = MAX_MESSAGE;
+
+  // handed to receive once the socket is closed
+  private static final NetworkUtils.Tuple CLOSED = new NetworkUtils.Tuple(null, 0, null);
+
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final SelectionKey key;
+  // not more bytes in flight than a socket buffer like ours can take at once
+  private final int windowBytes;
+  private final int packetSize = Integer.getInteger("udp.packetSize", 0);
+  private final double lossRate = Double.parseDouble(System.getProperty("udp.loss", "0"));
+  private final AtomicInteger nextMessageId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+  private final Thread io;
+  private volatile boolean closed = false;
+
+  // between the io thread and everybody else
+  private final Queue<Outgoing> toSend = new ConcurrentLinkedQueue<Outgoing>();
+  private final BlockingQueue<NetworkUtils.Tuple> delivered = new LinkedBlockingQueue<NetworkUtils.Tuple>();
+
+  // everything below is only touched by the io thread
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+  private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(NetworkUtils.ACK_LENGTH);
+  private final Map<InetAddress, Integer> packetSizes = new HashMap<InetAddress, Integer>();
+  private final Map<InetSocketAddress, Peer> peers = new HashMap<InetSocketAddress, Peer>();
+  private final Map<String, Outgoing> sending = new LinkedHashMap<String, Outgoing>();
+  private final Map<String, Incoming> incoming = new HashMap<String, Incoming>();
+  private final Map<InetSocketAddress, Long> incomingBytes = new HashMap<InetSocketAddress, Long>();
+  // messages we delivered recently, a sender that missed our last ack resends and needs another one
+  private final LinkedHashMap<String, Long> completed = new LinkedHashMap<String, Long>();
+
+  public ReliableSocket() throws IOException {
+    this(0);
+  }
+
+  public ReliableSocket(int port) throws IOException {
+    channel = DatagramChannel.open();
+    channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+    channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+    channel.bind(new InetSocketAddress(port));
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    key = channel.register(selector, SelectionKey.OP_READ);
+    windowBytes = Math.min(channel.getOption(StandardSocketOptions.SO_RCVBUF),
+        channel.getOption(StandardSocketOptions.SO_SNDBUF)) / 2;
+    io = new Thread(this::run, "udp io " + port);
+    io.setDaemon(true);
+    io.start();
+  }
+
+  public int getLocalPort() throws IOException {
+    return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+  }
+
+  /*
+   * Starts sending the message. The future completes once the receiver has all of it, or
+   * fails with an IOException if a packet was not acknowledged after MAX_TRIES attempts.
+   * Messages are delivered in the order they are complete, so to have two messages arrive
+   * in order start the second one when the first is done.
+   */
+  public CompletableFuture<Void> sendAsync(InetAddress addr, int port, byte... bytes) {
+    Outgoing out = new Outgoing(new InetSocketAddress(addr, port), nextMessageId.getAndIncrement(), bytes);
+    if (bytes.length > MAX_MESSAGE) {
+      out.done.completeExceptionally(new IOException("Message too big: " + bytes.length + " bytes"));
+    } else if (closed) {
+      out.done.completeExceptionally(new IOException("Socket closed"));
+    } else {
+      toSend.add(out);
+      selector.wakeup();
+    }
+    return out.done;
+  }
+
+  /*
+   * Sends the message and returns once the receiver has all of it.
+   */
+  public void send(InetAddress addr, int port, byte... bytes) throws IOException {
+    try {
+      sendAsync(addr, port, bytes).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /*
+   * Blocks until a whole message from anyone arrived and returns it with the sender.
+   */
+  public NetworkUtils.Tuple receive() throws IOException {
+    NetworkUtils.Tuple message;
+    try {
+      message = delivered.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (message == CLOSED) {
+      delivered.add(CLOSED); // for the next one asking
+      throw new IOException("Socket closed");
+    }
+    return message;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      io.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // the io thread: sends what is due, waits for packets until the next thing is due, repeat
+  private void run() {
+    IOException failure = new IOException("Socket closed");
+    try {
+      while (!closed) {
+        Outgoing out;
+        while ((out = toSend.poll()) != null) {
+          start(out);
+        }
+        long now = System.currentTimeMillis();
+        long wait = 0; // nothing to resend and nothing to expire: wait for packets as long as it takes
+        for (Outgoing o : new ArrayList<Outgoing>(sending.values())) {
+          long due;
+          try {
+            due = pump(o, now);
+          } catch (IOException e) {
+            fail(o, e); // e.g. no route to that peer, the others go on
+            continue;
+          }
+          if (due > 0) {
+            wait = wait == 0 ? due - now : Math.min(wait, due - now);
+          }
+        }
+        if (!incoming.isEmpty() || !peers.isEmpty()) {
+          wait = wait == 0 ? REASSEMBLY_TIMEOUT_MS : Math.min(wait, REASSEMBLY_TIMEOUT_MS);
+        }
+        if (toSend.isEmpty()) {
+          selector.select(wait == 0 ? 0 : Math.max(1, wait));
+          selector.selectedKeys().clear();
+        }
+        NetworkUtils.Packet p;
+        while ((p = poll()) != null) {
+          // whatever one packet does to us, the socket has to keep working for everybody else
+          try {
+            if (p.Type == NetworkUtils.DATA) {
+              handleData(p);
+            } else {
+              handleAck(p);
+            }
+          } catch (Throwable t) {
+            System.out.println("Dropping packet from " + p.From + ": " + t);
+          }
+        }
+        expire();
+      }
+    } catch (IOException e) {
+      failure = e;
+    } finally {
+      for (Outgoing o : sending.values()) {
+        o.done.completeExceptionally(failure);
+      }
+      Outgoing out;
+      while ((out = toSend.poll()) != null) {
+        out.done.completeExceptionally(failure);
+      }
+      delivered.add(CLOSED);
+      try {
+        selector.close();
+        channel.close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+  }
+
+  private void fail(Outgoing out, IOException e) {
+    sending.remove(key(out.to, out.messageId));
+    out.done.completeExceptionally(e);
+  }
+
+  private void start(Outgoing out) {
+    out.peer = peer(out.to);
+    int size = packetSize(out.to.getAddress());
+    out.payload = size - NetworkUtils.DATA_HEADER;
+    out.total = Math.max(1, (out.bytes.length + out.payload - 1) / out.payload);
+    out.maxWindow = Math.max(2, Math.min(MAX_WINDOW, windowBytes / size));
+    out.sentAt = new long[out.total];
+    out.tries = new int[out.total];
+    out.acked = new boolean[out.total];
+    out.fastResent = new boolean[out.total];
+    sending.put(key(out.to, out.messageId), out);
+  }
+
+  // sends new packets the window has room for and resends timed out ones,
+  // returns when the next packet of this message times out (0 if it is done)
+  private long pump(Outgoing out, long now) throws IOException {
+    Peer peer = out.peer;
+    peer.lastUsed = now;
+    int window = Math.min(out.maxWindow, (int) peer.window);
+    while (out.next < out.total && out.next - out.base < window) {
+      transmit(out, out.next);
+      out.sentAt[out.next] = now;
+      out.next++;
+    }
+
+    long due = 0;
+    boolean newLoss = false;
+    for (int i = out.base; i < out.next; i++) {
+      if (out.acked[i]) {
+        continue;
+      }
+      if (out.sentAt[i] + peer.rto <= now) {
+        if (++out.tries[i] >= MAX_TRIES) {
+          fail(out, new IOException("No acknowledgement from " + out.to));
+          return 0;
+        }
+        transmit(out, i);
+        out.sentAt[i] = now;
+        newLoss |= i >= out.recoverUntil;
+      }
+      long packetDue = out.sentAt[i] + peer.rto;
+      due = due == 0 ? packetDue : Math.min(due, packetDue);
+    }
+    // slow down once per window of losses, not for every packet of it
+    if (newLoss) {
+      peer.lost();
+      peer.rto = Math.min(MAX_RTO_MS, peer.rto * 2);
+      out.recoverUntil = out.next;
+    }
+    return due;
+  }
+
+  private void handleAck(NetworkUtils.Packet p) throws IOException {
+    Outgoing out = sending.get(key(p.From, p.MessageId));
+    if (out == null) {
+      return; // a late ack of something we already finished
+    }
+    Peer peer = out.peer;
+    // mark everything this ack confirms, measure round trip on packets that went out only once
+    long now = System.currentTimeMillis();
+    int highest = -1;
+    for (int i = out.base; i < out.next; i++) {
+      boolean confirmed = i < p.Received
+          || (i > p.Received && i - p.Received - 1 < 64 && (p.Mask & (1L << (i - p.Received - 1))) != 0);
+      if (!confirmed) {
+        continue;
+      }
+      highest = i;
+      if (out.acked[i]) {
+        continue;
+      }
+      out.acked[i] = true;
+      if (out.tries[i] == 0) {
+        peer.sampleRtt(now - out.sentAt[i]);
+      }
+      peer.grow();
+    }
+    // holes with three acked packets after them are most likely lost, resend without waiting
+    int ackedAfter = 0;
+    for (int i = highest; i >= out.base; i--) {
+      if (out.acked[i]) {
+        ackedAfter++;
+      } else if (ackedAfter >= 3 && !out.fastResent[i]) {
+        out.fastResent[i] = true;
+        out.tries[i]++;
+        transmit(out, i);
+        out.sentAt[i] = now;
+        if (i >= out.recoverUntil) {
+          peer.lost();
+          out.recoverUntil = out.next;
+        }
+      }
+    }
+    while (out.base < out.total && out.acked[out.base]) {
+      out.base++;
+    }
+    if (out.base == out.total) {
+      sending.remove(key(p.From, p.MessageId));
+      out.done.complete(null);
+    } else {
+      pump(out, now); // the window moved, send what fits now
+    }
+  }
+
+  private void transmit(Outgoing out, int current) throws IOException {
+    int offset = current * out.payload;
+    int length = Math.min(out.payload, out.bytes.length - offset);
+    NetworkUtils.putData(sendBuffer, out.messageId, out.total, current, out.bytes, offset, length);
+    send(sendBuffer, out.to);
+  }
+
+  private void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+    if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+      return; // dropped on purpose, see udp.loss
+    }
+    // a full send buffer makes a non blocking channel send nothing, wait until there is room
+    while (channel.send(packet, to) == 0) {
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      selector.select(MIN_RTO_MS);
+      selector.selectedKeys().clear();
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  // names a message of one peer. Only the ip and port, "localhost/127.0.0.1:9000" we send to
+  // has to match "/127.0.0.1:9000" the acks come from.
+  private static String key(InetSocketAddress address, int messageId) {
+    return address.getAddress().getHostAddress() + ":" + address.getPort() + "#" + messageId;
+  }
+
+  private Peer peer(InetSocketAddress address) {
+    Peer peer = peers.get(address);
+    if (peer == null) {
+      peer = new Peer();
+      peers.put(address, peer);
+    }
+    return peer;
+  }
+
+  // the biggest datagram that reaches addr without being fragmented on the way out of this host
+  private int packetSize(InetAddress addr) {
+    if (packetSize > 0) {
+      return Math.max(MIN_PACKET_SIZE, Math.min(MAX_DATAGRAM, packetSize));
+    }
+    Integer size = packetSizes.get(addr);
+    if (size == null) {
+      size = DEFAULT_PACKET_SIZE;
+      // connecting a datagram socket sends nothing, it only picks the route and so the interface
+      try (DatagramSocket probe = new DatagramSocket()) {
+        probe.connect(addr, 9);
+        NetworkInterface nif = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        if (nif != null && nif.getMTU() > 0) {
+          int headers = (addr instanceof Inet6Address ? 40 : 20) + 8;
+          size = Math.max(MIN_PACKET_SIZE, Math.min(MAX_DATAGRAM, nif.getMTU() - headers));
+        }
+      } catch (IOException e) {
+        // stay with the default
+      }
+      packetSizes.put(addr, size);
+    }
+    return size;
+  }
+
+  // the next packet of our protocol that is already there, or null.
+  // For data packets the payload is still in receiveBuffer, at its position.
+  private NetworkUtils.Packet poll() throws IOException {
+    while (true) {
+      receiveBuffer.clear();
+      InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+      if (from == null) {
+        return null;
+      }
+      receiveBuffer.flip();
+      try {
+        return new NetworkUtils.Packet(from, receiveBuffer);
+      } catch (IOException e) {
+        // not one of ours, ignore it
+      }
+    }
+  }
+
+  private void handleData(NetworkUtils.Packet p) throws IOException {
+    String key = key(p.From, p.MessageId);
+    if (completed.containsKey(key)) {
+      sendAck(p.From, p.MessageId, p.Total, 0);
+      return;
+    }
+    if (p.MessageLength > MAX_MESSAGE) {
+      return;
+    }
+    Incoming in = incoming.get(key);
+    if (in == null) {
+      long held = incomingBytes.getOrDefault(p.From, 0L);
+      if (held + p.MessageLength > MAX_INCOMING_PER_PEER) {
+        return; // not acked, the sender tries again when its other messages are through
+      }
+      in = new Incoming(p.From, p.Total, p.MessageLength);
+      incoming.put(key, in);
+      incomingBytes.put(p.From, held + p.MessageLength);
+    } else if (in.have.length != p.Total || in.data.length != p.MessageLength) {
+      return;
+    }
+    in.add(p.Current, p.Offset, p.Length, receiveBuffer);
+    sendAck(p.From, p.MessageId, in.contiguous, in.mask());
+    if (in.count == in.have.length) {
+      incoming.remove(key);
+      release(in);
+      completed.put(key, System.currentTimeMillis());
+      delivered.add(new NetworkUtils.Tuple(in.from.getAddress(), in.from.getPort(), in.data));
+    }
+  }
+
+  private void sendAck(InetSocketAddress to, int messageId, int received, long mask) throws IOException {
+    NetworkUtils.putAck(ackBuffer, messageId, received, mask);
+    send(ackBuffer, to);
+  }
+
+  private void release(Incoming in) {
+    long held = incomingBytes.get(in.from) - in.data.length;
+    if (held > 0) {
+      incomingBytes.put(in.from, held);
+    } else {
+      incomingBytes.remove(in.from);
+    }
+  }
+
+  // forget messages that stopped arriving, acks nobody will ask for again and idle peers
+  private void expire() {
+    long now = System.currentTimeMillis();
+    long oldest = now - REASSEMBLY_TIMEOUT_MS;
+    Iterator<Incoming> it = incoming.values().iterator();
+    while (it.hasNext()) {
+      Incoming in = it.next();
+      if (in.lastSeen < oldest) {
+        System.out.println("Dropping incomplete message from " + in.from);
+        it.remove();
+        release(in);
+      }
+    }
+    Iterator<Long> done = completed.values().iterator();
+    while (done.hasNext() && done.next() < oldest) {
+      done.remove();
+    }
+    peers.values().removeIf(peer -> peer.lastUsed < now - PEER_TIMEOUT_MS);
+  }
+
+  // what we know about the path to one peer, shared by all messages to it
+  private static class Peer {
+    double window = INITIAL_WINDOW;
+    double threshold = MAX_WINDOW;
+    double srtt = -1;
+    double rttvar = 0;
+    long rto = 200;
+    long lastUsed = System.currentTimeMillis();
+
+    void grow() {
+      window = Math.min(MAX_WINDOW, window < threshold ? window + 1 : window + 1 / window);
+    }
+
+    void lost() {
+      threshold = Math.max(2, window / 2);
+      window = threshold;
+    }
+
+    void sampleRtt(long rtt) {
+      if (srtt < 0) {
+        srtt = rtt;
+        rttvar = rtt / 2.0;
+      } else {
+        rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+        srtt = 0.875 * srtt + 0.125 * rtt;
+      }
+      rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long) (srtt + 4 * rttvar)));
+    }
+  }
+
+  // one message while we send it
+  private static class Outgoing {
+    final InetSocketAddress to;
+    final int messageId;
+    final byte[] bytes;
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    // set up by the io thread when it starts sending
+    Peer peer;
+    int payload;
+    int total;
+    int maxWindow;
+    long[] sentAt;
+    int[] tries;
+    boolean[] acked;
+    boolean[] fastResent;
+    int base = 0; // first packet without ack
+    int next = 0; // first packet never sent
+    int recoverUntil = 0; // loss inside the window we already reacted to
+
+    Outgoing(InetSocketAddress to, int messageId, byte[] bytes) {
+      this.to = to;
+      this.messageId = messageId;
+      this.bytes = bytes;
+    }
+  }
+
+  // one message while its packets come in, they are copied right to their place in data
+  private static class Incoming {
+    final InetSocketAddress from;
+    final byte[] data;
+    final boolean[] have;
+    int count = 0;
+    int contiguous = 0; // have[0..contiguous) all true
+    long lastSeen;
+
+    Incoming(InetSocketAddress from, int total, int length) {
+      this.from = from;
+      this.have = new boolean[total];
+      this.data = new byte[length];
+    }
+
+    void add(int current, int offset, int length, ByteBuffer payload) {
+      lastSeen = System.currentTimeMillis();
+      if (have[current]) {
+        return;
+      }
+      payload.get(data, offset, length);
+      have[current] = true;
+      count++;
+      while (contiguous < have.length && have[contiguous]) {
+        contiguous++;
+      }
+    }
+
+    long mask() {
+      long mask = 0;
+      for (int i = 0; i < 64 && contiguous + 1 + i < have.length; i++) {
+        if (have[contiguous + 1 + i]) {
+          mask |= 1L << i;
+        }
+      }
+      return mask;
+    }
+  }
+}
@@ -1,26 +1,36 @@
 package fauxSolution.udp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.util.Base64;
-import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.json.*;
 
 public class Server {
   /*
    * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
-   * (optional)"min": <int>, (optional)"max":<int> }
+   * (optional)"min": <int>, (optional)"max":<int>,
+   * (optional)"binary": <true if images can be sent as raw bytes> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
    * "quote", "image"> "data": <thing to return> }
    * 
+   * binary image response: {"datatype": 2, "type": "image", "binary": true,
+   * "length": <int>} followed by one more message holding the raw png
+   * 
    * error response: {"error": <error string> }
+   * 
+   * These are the messages as json, a client may agree on the binary codec first
+   * (see Codec), then "data" of the image is the raw png and nothing else follows.
    */
 
   public static JSONObject joke() {
@@ -40,44 +50,17 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
-    JSONObject json = new JSONObject();
-    json.put("datatype", 2);
+  // the image is loaded and encoded once, then served from memory
+  private static final ImageCache images = new ImageCache("img/To-Funny-For-Words1.png");
 
-    json.put("type", "image");
-
-    File file = new File("img/To-Funny-For-Words1.png");
-    if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
-    }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
-    }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
-    }
-    return error("Unable to save image to byte array");
+  // the messages answering an image request, see ImageCache.response
+  public static byte[][] image(Codec codec, boolean binary) throws IOException {
+    return images.response(codec, binary);
   }
 
-  public static JSONObject random() throws IOException {
-    Random rand = new Random();
-    int random = rand.nextInt(3);
-    JSONObject json = new JSONObject();
-    if (random == 0) {
-      json = joke();
-    } else if (random == 1) {
-      json = quote();
-    } else if (random == 2) {
-      json = image();
-    }
-    return json;
+  // 1=joke, 2=quote, 3=image
+  public static int random() {
+    return ThreadLocalRandom.current().nextInt(3) + 1;
   }
 
   public static JSONObject error(String err) {
@@ -86,56 +69,202 @@ public class Server {
     return json;
   }
 
+  // the messages answering one request, runs on the worker threads
+  public static byte[][] handle(Codec codec, byte[] messageBytes) {
+    JSONObject returnMessage;
+    try {
+      JSONObject message = codec.decode(messageBytes);
+      if (message.has("selected")) {
+        if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
+          int choice = message.getInt("selected");
+          if (choice == 4) {
+            choice = random();
+          }
+          switch (choice) {
+          case (1):
+            returnMessage = joke();
+            break;
+          case (2):
+            returnMessage = quote();
+            break;
+          case (3):
+            return image(codec, message.optBoolean("binary"));
+          default:
+            returnMessage = error("Invalid selection: " + choice + " is not an option");
+          }
+        } else {
+          returnMessage = error("Selection must be an integer");
+        }
+      } else {
+        returnMessage = error("Invalid message received");
+      }
+    } catch (JSONException e) {
+      returnMessage = error("Invalid message received");
+    } catch (IOException e) {
+      returnMessage = error("Unable to load image: " + e.getMessage());
+    }
+    return new byte[][] { codec.encode(returnMessage) };
+  }
+
+  // the first message of a client: a hello picks the codec, a json request is from a client
+  // that does not know about codecs and gets json
+  public static byte[][] hello(Session session, byte[] messageBytes) {
+    JSONObject message;
+    try {
+      message = Codec.JSON.decode(messageBytes);
+    } catch (JSONException e) {
+      // most likely a client that picked another codec before we forgot its session, guessing
+      // which one could answer it in bytes it cannot read. The codec stays open until it says hello.
+      System.out.println("Client " + session + " has to say hello again");
+      return new byte[][] { Codec.JSON.encode(Codec.unknown()) };
+    }
+    if (message.has("codecs")) {
+      session.codec = Codec.pick(message);
+      System.out.println("Client " + session + " speaks " + session.codec.name());
+      return new byte[][] { Codec.JSON.encode(Codec.answer(session.codec)) };
+    }
+    session.codec = Codec.JSON;
+    return handle(session.codec, messageBytes);
+  }
+
+  // a client is forgotten after this long without a request
+  static final long SESSION_TIMEOUT_MS = 60000;
+
+  /*
+   * What the server keeps per client (address and port): its requests that wait for a
+   * worker and when we last heard from it. Requests of one client are answered one after
+   * the other, so the answers arrive in the order they were asked for.
+   */
+  static class Session {
+    final InetAddress address;
+    final int port;
+    final ArrayDeque<byte[]> requests = new ArrayDeque<byte[]>();
+    boolean handling = false;
+    // set while answering the first message, one worker after the other touches it
+    Codec codec;
+    long lastSeen;
+    int served = 0;
+
+    Session(InetAddress address, int port) {
+      this.address = address;
+      this.port = port;
+    }
+
+    public String toString() {
+      return address + ":" + port;
+    }
+  }
+
+  private static final Map<InetSocketAddress, Session> sessions = new ConcurrentHashMap<InetSocketAddress, Session>();
+  private static ExecutorService workers;
+
+  /*
+   * The main thread only takes whole messages from the socket and files them with the
+   * session of their sender. Workers build the answers, the socket's own thread sends them
+   * (for all clients at the same time). A slow client or a big answer holds up nobody else.
+   */
   public static void main(String[] args) throws IOException {
-    DatagramSocket sock = null;
+    int port = 9000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (args.length > 0) {
+      port = Integer.parseInt(args[0]);
+    }
+    if (args.length > 1) {
+      threads = Integer.parseInt(args[1]);
+    }
+    ReliableSocket sock = null;
+    ScheduledExecutorService expiry = null;
     try {
-      sock = new DatagramSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      if (!images.getFile().exists()) {
+        System.err.println("Cannot find file: " + images.getFile().getAbsolutePath());
+        System.exit(-1);
+      }
+      images.response(Codec.JSON, false); // load it now rather than with the first request
+      workers = Executors.newFixedThreadPool(threads);
+      expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session expiry");
+        t.setDaemon(true); // must not keep the JVM up once main is gone
+        return t;
+      });
+      expiry.scheduleWithFixedDelay(Server::expireSessions, SESSION_TIMEOUT_MS, SESSION_TIMEOUT_MS / 4,
+          TimeUnit.MILLISECONDS);
+      sock = new ReliableSocket(port);
+      System.out.println("Server ready for clients on port " + port);
       while (true) {
-        try {
-          while (true) {
-            NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
-            JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(sock, messageTuple.Address, messageTuple.Port, output);
-          }
-        } catch (IOException e) {
-          e.printStackTrace();
+        NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
+        InetSocketAddress from = new InetSocketAddress(messageTuple.Address, messageTuple.Port);
+        Session session = sessions.computeIfAbsent(from, k -> {
+          System.out.println("New client " + k);
+          return new Session(messageTuple.Address, messageTuple.Port);
+        });
+        synchronized (session) {
+          session.lastSeen = System.currentTimeMillis();
+          session.requests.add(messageTuple.Payload);
         }
+        next(sock, session);
       }
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+      if (expiry != null) {
+        expiry.shutdownNow();
+      }
       if (sock != null) {
         sock.close();
       }
     }
   }
-}
\ No newline at end of file
+
+  // hands the next request of the session to a worker, unless one of its requests is being answered
+  private static void next(ReliableSocket sock, Session session) {
+    byte[] request;
+    synchronized (session) {
+      if (session.handling || session.requests.isEmpty()) {
+        return;
+      }
+      session.handling = true;
+      request = session.requests.poll();
+    }
+    workers.execute(() -> {
+      byte[][] output;
+      try {
+        output = session.codec == null ? hello(session, request) : handle(session.codec, request);
+      } catch (Throwable e) {
+        // the request goes unanswered, the session still moves on to its next one
+        System.out.println("Could not answer " + session + ": " + e);
+        output = new byte[0][];
+      }
+      // the messages of one answer (image header and image) go out one after the other
+      CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+      for (byte[] bytes : output) {
+        sent = sent.thenCompose(v -> sock.sendAsync(session.address, session.port, bytes));
+      }
+      sent.whenComplete((v, e) -> {
+        if (e != null) {
+          System.out.println("Could not answer " + session + ": " + e.getMessage());
+        }
+        synchronized (session) {
+          session.handling = false;
+          session.served++;
+        }
+        next(sock, session);
+      });
+    });
+  }
+
+  private static void expireSessions() {
+    long oldest = System.currentTimeMillis() - SESSION_TIMEOUT_MS;
+    sessions.values().removeIf(session -> {
+      synchronized (session) {
+        boolean idle = !session.handling && session.requests.isEmpty() && session.lastSeen < oldest;
+        if (idle) {
+          System.out.println("Client " + session + " went quiet after " + session.served + " requests");
+        }
+        return idle;
+      }
+    });
+  }
+}
@@ -2,10 +2,19 @@ package client;
 
 import java.net.*;
 import java.io.*;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Vector;
 import serial.GroupImpl;
 import serial.Group;
+import socket.DeltaSync;
+import socket.FileTransfer;
+import socket.IO;
 
 /**
 
@@ -13,14 +22,14 @@ import serial.Group;
  * A threaded server providing download service for the Serialized Group
  * The server waits for clients to connect and requiest to download the
  * file admin.ser (must execute: ant execute, prior to running server).
- * The clients requests the file by sending a "filetoclient^" string to
- * the server. The server responds by reading admin.ser and then sending the
- * client a message indicating how many bytes to expect in the transmission of
- * the file. The client responds OK, and the server sends the file's bytes.
- * after the client receives the proper number of bytes, it responds with a 
- * message OK. For longer binary files, this same interaction/protocol could
- * be used where the client and server agree on a pre-specified buffer size
- * for sending successive parts of the file.
+ * The clients requests the file by sending a
+ * "filetoclient^<offset>^<file>^<version>^" string to the server, offset is
+ * what it already has of an interrupted download and version the digest of
+ * the file it came from. The server responds with the length of the file,
+ * where it starts and its digest, then streams the file in checksummed chunks
+ * (see socket.FileTransfer) that the client acknowledges as they arrive.
+ * "sync^<file>^" and "upload^<file>^" update a copy on either side, only the
+ * blocks that changed cross the network (see socket.DeltaSync).
  *
  * <p/>
  * Ser321 Principles of Distributed Software Systems
@@ -31,82 +40,211 @@ import serial.Group;
  */
 public class GroupClient extends Object {
 
-   private static final byte[] fileToClientBytes = "fileToClient^".getBytes();
    private String serverHost;
    private int aPort;
+   private String remoteName; //eg. admin.ser, the file on the server
    private String filename;  //eg. admin2.ser
 
    private static final boolean debugOn = true;
 
    public GroupClient(String serverHost, int portToUse, String fPath){
+      this(serverHost, portToUse, "admin.ser", fPath);
+   }
+
+   public GroupClient(String serverHost, int portToUse, String remoteName,
+                      String fPath){
       this.serverHost = serverHost;
       this.aPort = portToUse;
+      this.remoteName = remoteName;
       this.filename = fPath;
    }
 
-   public int downloadGroup(){
-      int ret = 0;
-      byte[] okBytes = "OK".getBytes();
+   /**
+    * Downloads the group file into a ".part" file next to filename and renames
+    * it once it is complete and its digest matches the server's. If a ".part"
+    * file is left from an interrupted download, only the bytes after it are
+    * asked for, with the digest of its version kept in a ".part.version"
+    * file. The server starts over when the file has changed since.
+    */
+   public long downloadGroup(){
+      long ret = 0;
       Socket sock = null;
-      InputStream inStream = null;
-      OutputStream outStream = null;
-      FileOutputStream fos = null;
       try{
          System.out.println("Connecting to GroupServer: "+serverHost+
                             ":"+aPort+" to receive serialized group.");
          sock = new Socket(serverHost, aPort);
-         inStream = sock.getInputStream();
-         outStream = sock.getOutputStream();
-         
-         // send GroupServer the string: fileToClient^
-         debug("sending "+fileToClientBytes.length+" bytes in the string: "+
-                 (new String(fileToClientBytes,0,fileToClientBytes.length)));
-         outStream.write(fileToClientBytes,0,fileToClientBytes.length);
-         outStream.flush();
-         
-         // create file output stream for writing the serialized group
-         fos = new FileOutputStream(filename);
-         
-         // read the number of bytes in buffer followed by total file bytes
-         byte[] bufCount = socket.IO.read(inStream);
-         int byteCount = 1;
-         String packet;
-         int packetLength = 0;
-         if(bufCount.length > 0){
-            // process packet length header packet
-            packet = new String(bufCount, 0, bufCount.length);
-            debug("read byte counts from server: "+packet);
-            StringTokenizer st = new StringTokenizer(packet, "^");
-            packetLength = Integer.parseInt(st.nextToken());
-            byteCount = Integer.parseInt(st.nextToken());
-
-            // signal to send
-            outStream.write(okBytes,0,okBytes.length);
-            debug("wrote OK, next looking for "+packetLength+" bytes");
-
-            // read the bytes from the network
-            byte [] buf = socket.IO.read(inStream);
-            // verify
-            if (buf.length != packetLength) {
-               debug("unexpected read buffer got "+buf.length +
-                     " expected "+packetLength+" bytes.");
-            }
-            // write to the local file.
-            fos.write(buf,0,packetLength);
-            outStream.write(okBytes,0,okBytes.length);
-            outStream.flush();
+         IO io = new IO(sock);
+
+         File partFile = new File(filename+".part");
+         File versionFile = new File(filename+".part.version");
+         long have = 0;
+         String version = "";
+         if (partFile.isFile() && versionFile.isFile()) {
+            have = partFile.length();
+            version = new String(Files.readAllBytes(versionFile.toPath())).trim();
+         }
+
+         // send GroupServer the string:
+         // fileToClient^<bytes we have>^<file>^<version they are of>^
+         String request = "fileToClient^"+have+"^"+remoteName+"^"+version+"^";
+         debug("sending the string: "+request);
+         io.writeString(request);
+
+         // read the file length, where the server starts sending and the digest
+         ByteBuffer header = ByteBuffer.wrap(io.read());
+         long byteCount = header.getLong();
+         long start = header.getLong();
+         if (byteCount < 0) {
+            throw new FileNotFoundException("Server has no file "+remoteName);
          }
+         byte[] digest = new byte[FileTransfer.DIGEST_LENGTH];
+         header.get(digest);
+         debug("server sends "+(byteCount-start)+" of "+byteCount+
+               " bytes, starting at "+start);
+         // an interrupted download remembers the version its bytes are of
+         Files.write(versionFile.toPath(), FileTransfer.hex(digest).getBytes());
 
-         // should send OK response, but close works ok to.
+         // write the chunks into the part file, at their offset
+         boolean intact;
+         try (FileChannel fc = FileChannel.open(partFile.toPath(),
+               StandardOpenOption.CREATE, StandardOpenOption.READ,
+               StandardOpenOption.WRITE)) {
+            fc.truncate(start);
+            FileTransfer.receive(fc, start, byteCount, io.getInputStream(),
+                                 io.getOutputStream());
+            intact = Arrays.equals(digest, FileTransfer.digest(fc, byteCount));
+         }
+         if (!intact) {
+            // the next download starts over
+            partFile.delete();
+            versionFile.delete();
+            throw new IOException("Download of "+remoteName+
+                                  " does not match the server's digest");
+         }
+         Files.move(partFile.toPath(), Paths.get(filename),
+                    StandardCopyOption.REPLACE_EXISTING);
+         versionFile.delete();
 
          ret = byteCount;
-         fos.close();
-         inStream.close();
-         sock.close();
          System.out.println("Finished downloading serialized group with "+
                             byteCount+" bytes.");
+      }catch (FileNotFoundException e){
+         System.out.println(e.getMessage());
       }catch (Exception e){
          e.printStackTrace();
+      }finally{
+         if (sock != null) {
+            try{
+               sock.close();
+            }catch (IOException e){
+               // gone already
+            }
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * Brings filename up to date with the group on the server, only the blocks
+    * that changed since our copy are transferred (see socket.DeltaSync). The
+    * new version is patched into a ".part" file from our copy and the delta,
+    * then replaces it. Without a copy this is a whole download.
+    * @return number of changed bytes that came over, -1 if it failed
+    */
+   public long syncGroup(){
+      long ret = -1;
+      Socket sock = null;
+      File partFile = new File(filename+".part");
+      try{
+         System.out.println("Connecting to GroupServer: "+serverHost+
+                            ":"+aPort+" to sync serialized group.");
+         sock = new Socket(serverHost, aPort);
+         IO io = new IO(sock);
+         File oldFile = new File(filename);
+         try (FileChannel old = oldFile.isFile() ?
+                 FileChannel.open(oldFile.toPath(), StandardOpenOption.READ) :
+                 null;
+              FileChannel fc = FileChannel.open(partFile.toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            // sync^<file>^ and the signature of what we have
+            DeltaSync.Signature sig = DeltaSync.signature(old);
+            debug("sending sync^"+remoteName+"^ with the signature of "+
+                  sig.getLength()+" bytes");
+            io.writeString("sync^"+remoteName+"^");
+            sig.write(new DataOutputStream(io.getOutputStream()));
+
+            long byteCount = ByteBuffer.wrap(io.read()).getLong();
+            if (byteCount < 0) {
+               throw new FileNotFoundException("Server has no file "+
+                                               remoteName);
+            }
+            ret = DeltaSync.patch(old, sig.getBlockSize(),
+                  new DataInputStream(io.getInputStream()), fc);
+            System.out.println("Finished syncing serialized group with "+
+                               byteCount+" bytes, "+ret+" of them changed.");
+         }
+         Files.move(partFile.toPath(), Paths.get(filename),
+                    StandardCopyOption.REPLACE_EXISTING);
+      }catch (FileNotFoundException e){
+         System.out.println(e.getMessage());
+      }catch (Exception e){
+         e.printStackTrace();
+      }finally{
+         partFile.delete();
+         if (sock != null) {
+            try{
+               sock.close();
+            }catch (IOException e){
+               // gone already
+            }
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * Sends filename to the server as remoteName. The server answers with the
+    * signature of its copy, only the blocks that changed are sent.
+    * @return number of changed bytes sent, -1 if it failed
+    */
+   public long uploadGroup(){
+      long ret = -1;
+      Socket sock = null;
+      try (FileChannel fc = FileChannel.open(Paths.get(filename),
+              StandardOpenOption.READ)) {
+         System.out.println("Connecting to GroupServer: "+serverHost+
+                            ":"+aPort+" to upload serialized group.");
+         sock = new Socket(serverHost, aPort);
+         IO io = new IO(sock);
+         debug("sending upload^"+remoteName+"^");
+         io.writeString("upload^"+remoteName+"^");
+         if (ByteBuffer.wrap(io.read()).getLong() < 0) {
+            System.out.println("Server refused to store "+remoteName);
+            return ret;
+         }
+         DeltaSync.Signature sig = DeltaSync.Signature.read(
+               new DataInputStream(io.getInputStream()));
+         long sent = DeltaSync.delta(fc, sig,
+                                     new DataOutputStream(io.getOutputStream()));
+         long stored = ByteBuffer.wrap(io.read()).getLong();
+         if (stored != fc.size()) {
+            System.out.println("Server failed to store "+remoteName);
+            return ret;
+         }
+         ret = sent;
+         System.out.println("Finished uploading serialized group with "+
+                            stored+" bytes, "+sent+" of them changed.");
+      }catch (Exception e){
+         e.printStackTrace();
+      }finally{
+         if (sock != null) {
+            try{
+               sock.close();
+            }catch (IOException e){
+               // gone already
+            }
+         }
       }
       return ret;
    }
@@ -120,19 +258,50 @@ public class GroupClient extends Object {
       try{
          int portNo = 3030;
          String host = "127.0.0.1";
-         if (args.length != 2) {
-            System.out.println(
-               "Expected Arguments: <host(String)> <port(int)>");
+         String remote = "admin.ser";
+         String mode = "download";
+         if (args.length < 2 || args.length > 4) {
+            System.out.println("Expected Arguments: <host(String)> "+
+               "<port(int)> [file(String)] [download|sync|upload]");
             System.exit(0);
          }else{
             host = args[0];
             portNo = Integer.parseInt(args[1]);
+            if (args.length > 2) {
+               remote = args[2];
+            }
+            if (args.length > 3) {
+               mode = args[3];
+            }
+         }
+         if (mode.equals("upload")) {
+            // our file goes to the server under its own name
+            GroupClient gc = new GroupClient(host,portNo,
+                                             new File(remote).getName(),remote);
+            gc.uploadGroup();
+            return;
+         }
+         // admin.ser is saved as admin2.ser, other files the same way
+         String local = new File(remote).getName();
+         int dot = local.lastIndexOf('.');
+         local = dot > 0 ? local.substring(0, dot)+"2"+local.substring(dot)
+                         : local+"2";
+         GroupClient gc = new GroupClient(host,portNo,remote,local);
+         long howManyBytes = 0;
+         if (mode.equals("sync")) {
+            howManyBytes = gc.syncGroup();
+            if (howManyBytes < 0) {
+               return;
+            }
+            howManyBytes = new File(local).length();
+         } else {
+            howManyBytes = gc.downloadGroup();
+         }
+         gc.debug("Completed "+mode+", file has "+ howManyBytes +" bytes.");
+         if (howManyBytes == 0 || !remote.endsWith(".ser")) {
+            return; // nothing downloaded or not a serialized group
          }
-         GroupClient gc = new GroupClient(host,portNo,"admin2.ser");
-         int howManyBytes = 0;
-         howManyBytes = gc.downloadGroup();
-         gc.debug("Completed download, transferred "+ howManyBytes +" bytes.");
-         File inFile = new File("admin2.ser");
+         File inFile = new File(local);
          ObjectInputStream in =
             new ObjectInputStream(new FileInputStream(inFile));
          Group g = (GroupImpl)in.readObject();
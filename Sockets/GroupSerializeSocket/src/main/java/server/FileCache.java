@@ -0,0 +1,204 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import socket.FileTransfer;
+
+/**
+ * Purpose: The files GroupServer hands out, kept in memory for all connections.
+ *
+ * A file is memory-mapped and loaded the first time somebody downloads it, and
+ * the checksums of all its chunks and its digest are computed once. Every download after that
+ * sends from the same pages in memory and does not touch the disk. When the
+ * file on disk changes (size or time) it is loaded again.
+ *
+ * The cache holds at most maxBytes of files. When a new one does not fit, the
+ * ones downloaded least recently are dropped (the OS unmaps them once nobody
+ * sends from them anymore). A file bigger than the whole cache is not kept,
+ * get returns null and the download streams it from disk.
+ *
+ * Ser321 Principles of Distributed Software Systems
+ */
+public class FileCache {
+  // one mapping covers at most this much, a MappedByteBuffer ends at 2 GB
+  private static final long SEGMENT_SIZE = 1024L * FileTransfer.CHUNK_SIZE;
+
+  /**
+   * One version of a cached file, a FileTransfer.Source for any number of
+   * downloads at once.
+   */
+  public static class CachedFile implements FileTransfer.Source {
+    final long size;
+    final long modified;
+    private final MappedByteBuffer[] segments;
+    // crc32 of every full (or last) chunk
+    private final int[] checksums;
+    // MD5 of the whole file (see FileTransfer.digest), set by load with the checksums
+    private byte[] digest;
+
+    private CachedFile(long size, long modified, MappedByteBuffer[] segments, int[] checksums) {
+      this.size = size;
+      this.modified = modified;
+      this.segments = segments;
+      this.checksums = checksums;
+    }
+
+    static CachedFile load(Path path, long size, long modified) throws IOException {
+      MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+        for (int i = 0; i < segments.length; i++) {
+          long offset = i * SEGMENT_SIZE;
+          segments[i] = file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, size - offset));
+          segments[i].load();
+        }
+      }
+      CachedFile cached = new CachedFile(size, modified, segments,
+          new int[(int) ((size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE)]);
+      MessageDigest md5 = FileTransfer.md5();
+      for (int i = 0; i < cached.checksums.length; i++) {
+        long offset = (long) i * FileTransfer.CHUNK_SIZE;
+        int n = (int) Math.min(FileTransfer.CHUNK_SIZE, size - offset);
+        cached.checksums[i] = crc(cached.slice(offset, n));
+        md5.update(cached.slice(offset, n));
+      }
+      cached.digest = md5.digest();
+      return cached;
+    }
+
+    public long length() {
+      return size;
+    }
+
+    public byte[] digest() {
+      return digest.clone();
+    }
+
+    public int checksum(long offset, int n) {
+      if (offset % FileTransfer.CHUNK_SIZE == 0 && (n == FileTransfer.CHUNK_SIZE || offset + n == size)) {
+        return checksums[(int) (offset / FileTransfer.CHUNK_SIZE)];
+      }
+      return crc(slice(offset, n)); // the first chunk of a resumed download
+    }
+
+    public void write(long offset, int n, WritableByteChannel out) throws IOException {
+      ByteBuffer data = slice(offset, n);
+      while (data.hasRemaining()) {
+        out.write(data);
+      }
+    }
+
+    // the n bytes at offset, for one caller (every download has its own position and limit)
+    private ByteBuffer slice(long offset, int n) {
+      ByteBuffer data = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+      int start = (int) (offset % SEGMENT_SIZE);
+      data.limit(start + n).position(start);
+      return data;
+    }
+
+    private static int crc(ByteBuffer data) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      return (int) crc.getValue();
+    }
+  }
+
+  // a file while it loads and after, the first download loads it, the others wait for it
+  private static class Entry {
+    final long size;
+    final long modified;
+    final FutureTask<CachedFile> load;
+
+    Entry(Path path, long size, long modified) {
+      this.size = size;
+      this.modified = modified;
+      this.load = new FutureTask<CachedFile>(() -> CachedFile.load(path, size, modified));
+    }
+  }
+
+  private final long maxBytes;
+  // least recently used first
+  private final LinkedHashMap<Path, Entry> files = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+  private long bytes = 0;
+
+  public FileCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * The file ready to send, loaded if it is not cached yet or changed on disk.
+   * @param path a regular file
+   * @return the cached file, or null if it is too big for the cache
+   * @throws IOException if the file cannot be read
+   */
+  public CachedFile get(Path path) throws IOException {
+    long size = Files.size(path);
+    long modified = Files.getLastModifiedTime(path).toMillis();
+    if (size > maxBytes) {
+      return null;
+    }
+    Entry entry;
+    boolean mine = false;
+    synchronized (this) {
+      entry = files.get(path);
+      if (entry == null || entry.size != size || entry.modified != modified) {
+        if (entry != null) {
+          bytes -= entry.size;
+        }
+        entry = new Entry(path, size, modified);
+        files.put(path, entry);
+        bytes += size;
+        mine = true;
+        evict(entry);
+      }
+    }
+    if (mine) {
+      entry.load.run();
+    }
+    try {
+      return entry.load.get();
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        if (files.remove(path, entry)) {
+          bytes -= entry.size;
+        }
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + path);
+    }
+  }
+
+  public synchronized long size() {
+    return bytes;
+  }
+
+  // drops the least recently used files until the cache fits again, never the one just added
+  private void evict(Entry added) {
+    Iterator<Map.Entry<Path, Entry>> it = files.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<Path, Entry> eldest = it.next();
+      if (eldest.getValue() != added) {
+        bytes -= eldest.getValue().size;
+        it.remove();
+      }
+    }
+  }
+}
@@ -2,20 +2,47 @@ package server;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import socket.DeltaSync;
+import socket.FileTransfer;
+import socket.IO;
 
 /**
  * 
  * Purpose: A threaded server providing download service for the Serialized
  * Group The server waits for clients to connect and requiest to download the
  * file admin.ser (must execute: ant execute, prior to running server). The
- * clients requests the file by sending a "filetoclient^" string to the server.
- * The server responds by reading admin.ser and then sending the client a
- * message indicating how many bytes to expect in the transmission of the file.
- * The client responds OK, and the server sends the file's bytes. after the
- * client receives the proper number of bytes, it responds with a message OK.
- * For longer binary files, this same interaction/protocol could be used where
- * the client and server agree on a pre-specified buffer size for sending
- * successive parts of the file.
+ * clients requests the file by sending a "filetoclient^" string to the server,
+ * or "filetoclient^<offset>^<file>^<version>^" to get the rest of an
+ * interrupted download, version is the digest the server sent with it.
+ * "filetoclient^0^<file>^" downloads another group file (*.ser) of the
+ * directory the server was started with. "sync^<file>^" brings a copy the
+ * client has already up to date and "upload^<file>^" sends the client's version
+ * to the server, both only transfer the blocks that changed (see
+ * socket.DeltaSync). Uploads are not authenticated, so only *.ser files right
+ * in the directory are served or written, nothing else the directory holds.
+ * The server responds with the length of the file, where it starts and the
+ * file's digest, then
+ * streams the file in checksummed chunks (see socket.FileTransfer). The client
+ * acknowledges the chunks as they arrive, the server does not wait for an OK
+ * after each one, so files of any size go at the speed of the connection.
+ * Downloads run on a fixed pool of threads and files are sent from a cache
+ * (see FileCache) that all connections share.
  *
  * <p/>
  * Ser321 Principles of Distributed Software Systems
@@ -25,108 +52,204 @@ import java.io.*;
  * @version April, 2020
  * 
  */
-public class GroupServer extends Thread {
-  private static final boolean debugOn = true;
+public class GroupServer implements Runnable {
+  private static final boolean debugOn = false;
+  // the file a request without a file name gets
+  private static final String DEFAULT_FILE = "admin.ser";
+  // downloads running at once, more wait in the queue, beyond that connections are turned away
+  private static final int THREADS = Integer.getInteger("threads", 16);
+  private static final int QUEUE = Integer.getInteger("queue", 64);
+
+  // the files we serve and the cache all connections share, set up by main
+  private static Path directory;
+  private static FileCache cache;
+
   private Socket conn;
   private int id;
-  private int byteCount;
 
   public GroupServer(Socket aSock, int connId) {
     this.conn = aSock;
     this.id = connId;
-    this.byteCount = 0;
   }
 
   public void run() {
     try {
-      OutputStream outStream = conn.getOutputStream();
-      InputStream inStream = conn.getInputStream();
-      byte clientInput[] = socket.IO.read(inStream);
+      IO io = new IO(conn);
+      byte clientInput[] = io.read();
       long byteCount = 0;
       if (clientInput.length > 0) {
         String clientString = new String(clientInput);
         GroupServer.debug("Read from client number " + Integer.toString(id) + ", " + Integer.toString(clientInput.length)
             + " bytes as the string: " + clientString + "\n");
-        if (clientString.equalsIgnoreCase("filetoclient^")) {
-          System.out.println("Request to download group file");
-          byteCount = this.downloadToClient();
+        // filetoclient^, filetoclient^0^<file>^ for another file than admin.ser or
+        // filetoclient^<offset>^<file>^<version>^ to resume a download
+        String[] request = clientString.split("\\^");
+        if (request[0].equalsIgnoreCase("filetoclient")) {
+          long offset = request.length > 1 ? Long.parseLong(request[1].trim()) : 0;
+          String name = request.length > 2 ? request[2] : DEFAULT_FILE;
+          String version = request.length > 3 ? request[3] : "";
+          System.out.println("Request to download " + name);
+          byteCount = this.downloadToClient(io, name, offset, version);
           System.out.println("Download complete. Transferred " + byteCount + " bytes.");
+        } else if (request[0].equalsIgnoreCase("sync") && request.length > 1) {
+          // sync^<file>^ followed by the signature of the client's old copy
+          System.out.println("Request to sync " + request[1]);
+          byteCount = this.syncToClient(io, request[1]);
+          System.out.println("Sync complete. Sent " + byteCount + " changed bytes.");
+        } else if (request[0].equalsIgnoreCase("upload") && request.length > 1) {
+          System.out.println("Request to upload " + request[1]);
+          byteCount = this.uploadFromClient(io, request[1]);
+          System.out.println("Upload complete. Received " + byteCount + " changed bytes.");
         }
       }
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      try {
+        conn.close();
+      } catch (IOException e) {
+        // gone already
+      }
     }
   }
 
-  private long downloadToClient() {
-    long byteCount = 0;
-    try {
-      // string request: filetoclient comes from client
-      GroupServer.debug("Download file admin.ser to client");
-
-      // get the connections streams
-      OutputStream outStream = conn.getOutputStream();
-      InputStream inStream = conn.getInputStream();
-
-      // open the input file containing serialized group
-      // NOTE: object stream serialization is compressed, not plain-text
-      String filePath = "admin.ser";
-      File inFile = new File(filePath);
-      long len = inFile.length();
-
-      // create a byte stream
-      FileInputStream fis = new FileInputStream(inFile);
-
-      // send the file to the client. First send the number of bytes
-      // to be transferred.
-      // start by reading the serialized group into buf to find how
-      // many bytes
-      byte[] buf = new byte[4096];
-      int bufCount = fis.read(buf);
-      GroupServer.debug("read " + bufCount + " bytes from the file");
-
-      // send two integer byte counts: bufLengthThisRead^fileLength
-      String thisBuf = String.valueOf(bufCount);
-      String numStr = thisBuf + "^" + String.valueOf(len) + "^";
-      GroupServer.debug("sending number of data bytes to client " + numStr);
-      // send
-      outStream.write(numStr.getBytes(), 0, numStr.getBytes().length);
-      outStream.flush();
-
-      // wait to be sure the client got it, by waiting for an OK.
-      byte clientOK[] = socket.IO.read(inStream);
-      GroupServer.debug("tried to read ok. Got " + clientOK.length + " bytes");
-      String okStr = new String(clientOK);
-      if (okStr.contains("OK")) {
-        // if client got byte counts and replied OK then send buf
-        outStream.write(buf, 0, bufCount);
-        outStream.flush();
-        GroupServer.debug("I sent bytes:" + Integer.toString(bufCount));
-        byteCount = byteCount + bufCount;
-      }
+  /**
+   * Streams the file to the client with socket.FileTransfer, starting at
+   * offset (the bytes of an earlier, interrupted download the client already
+   * has). First the client gets a message [ fileLength(8-byte long),
+   * start(8-byte long), digest(16 bytes) ], fileLength is -1 if there is no
+   * such file. The client's bytes are only used if version is the hex of the
+   * digest, the file's MD5 (see FileTransfer.digest), otherwise they are from
+   * a version that changed since and start is 0. Then the chunks follow, the
+   * client acknowledges them as they come in and checks the finished file
+   * against the digest.
+   * Files that fit the cache are sent from memory, others straight from disk.
+   */
+  private long downloadToClient(IO io, String name, long offset, String version) throws IOException {
+    GroupServer.debug("Download file " + name + " to client from offset " + offset);
+    ByteBuffer header = ByteBuffer.allocate(16 + FileTransfer.DIGEST_LENGTH);
+    Path path = resolve(name);
+    if (path == null) {
+      GroupServer.debug("no file " + name + " in " + directory);
+      header.putLong(-1).putLong(0);
+      io.write(header.array());
+      return 0;
+    }
 
-      // now, make sure the client got the buffer and replied OK
-      byte gotIT[] = socket.IO.read(inStream);
-      String gotStr = new String(gotIT);
-      if (gotStr.contains("OK")) {
-        GroupServer.debug("got OK");
-      } else {
-        GroupServer.debug("breaking because did not get OK. Got " + gotStr);
-      }
-      if (bufCount <= 0) {
-        GroupServer.debug("sending Done to client");
-        outStream.write("Done".getBytes(), 0, "Done".getBytes().length);
-        outStream.flush();
+    // a socket accepted from a channel has one, then file data goes from the file
+    // to the socket without passing through our buffers
+    WritableByteChannel out = conn.getChannel() != null ? conn.getChannel() : Channels.newChannel(io.getOutputStream());
+
+    FileCache.CachedFile cached = cache.get(path);
+    if (cached != null) {
+      byte[] digest = cached.digest();
+      long start = resumeAt(offset, cached.length(), digest, version);
+      GroupServer.debug("sending " + name + " from memory, length " + cached.length() + " start " + start);
+      header.putLong(cached.length()).putLong(start).put(digest);
+      io.write(header.array());
+      return FileTransfer.send(cached, start, out, io.getInputStream());
+    }
+    // NOTE: object stream serialization is compressed, not plain-text
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      long len = file.size();
+      byte[] digest = FileTransfer.digest(file, len);
+      long start = resumeAt(offset, len, digest, version);
+      GroupServer.debug("sending " + name + " from disk, length " + len + " start " + start);
+      header.putLong(len).putLong(start).put(digest);
+      io.write(header.array());
+      return FileTransfer.send(file, start, len, out, io.getInputStream());
+    }
+  }
+
+  // where a download continues: offset if the client's part is of this version of the file, else 0
+  private static long resumeAt(long offset, long length, byte[] digest, String version) {
+    if (offset > 0 && offset <= length && FileTransfer.hex(digest).equalsIgnoreCase(version)) {
+      return offset;
+    }
+    return 0;
+  }
+
+  /**
+   * Brings the client's copy of a file up to date with socket.DeltaSync. The
+   * client sends the signature of its copy, then gets a message [
+   * fileLength(8-byte long) ] (-1 if there is no such file) and the delta:
+   * the blocks it has already are only named, just the changed bytes are sent.
+   */
+  private long syncToClient(IO io, String name) throws IOException {
+    DeltaSync.Signature sig = DeltaSync.Signature.read(new DataInputStream(io.getInputStream()));
+    Path path = resolve(name);
+    ByteBuffer header = ByteBuffer.allocate(8);
+    if (path == null) {
+      GroupServer.debug("no file " + name + " in " + directory);
+      io.write(header.putLong(-1).array());
+      return 0;
+    }
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      GroupServer.debug("sync " + name + ", length " + file.size() + ", client has " + sig.getLength()
+          + " bytes in blocks of " + sig.getBlockSize());
+      io.write(header.putLong(file.size()).array());
+      return DeltaSync.delta(file, sig, new DataOutputStream(io.getOutputStream()));
+    }
+  }
+
+  /**
+   * The other way around: the client gets a message [ fileLength(8-byte long)
+   * ] with the length of our copy (0 if there is none yet, -1 if it may not be
+   * written) and its signature, and sends the delta. The new version is
+   * patched into a temporary file next to the old one and replaces it only
+   * when its MD5 checks out, downloads running meanwhile finish with the old
+   * one. At the end the client gets [ fileLength(8-byte long) ], -1 if the
+   * upload failed.
+   */
+  private long uploadFromClient(IO io, String name) throws IOException {
+    Path path = groupFile(name);
+    ByteBuffer header = ByteBuffer.allocate(8);
+    if (path == null || Files.isDirectory(path)) {
+      GroupServer.debug("cannot upload " + name + " to " + directory);
+      io.write(header.putLong(-1).array());
+      return 0;
+    }
+    Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".upload");
+    try (FileChannel old = Files.isRegularFile(path) ? FileChannel.open(path, StandardOpenOption.READ) : null;
+        FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      DeltaSync.Signature sig = DeltaSync.signature(old);
+      io.write(header.putLong(sig.getLength()).array());
+      sig.write(new DataOutputStream(io.getOutputStream()));
+      long received;
+      header.clear();
+      try {
+        received = DeltaSync.patch(old, sig.getBlockSize(), new DataInputStream(io.getInputStream()), out);
+        out.force(false);
+      } catch (IOException e) {
+        GroupServer.debug("upload of " + name + " failed: " + e.getMessage());
+        io.write(header.putLong(-1).array());
+        throw e;
       }
-      fis.close();
-      outStream.flush();
-      outStream.close();
-      conn.close();
-    } catch (Exception e) {
-      System.out.println("exception uploading to server: " + e.getMessage());
-      e.printStackTrace();
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      GroupServer.debug("uploaded " + name + ", length " + Files.size(path));
+      io.write(header.putLong(Files.size(path)).array());
+      return received;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  // the file called name in our directory, null if there is none (or it is not one we serve)
+  private static Path resolve(String name) {
+    Path path = groupFile(name);
+    if (path == null || !Files.isRegularFile(path)) {
+      return null;
     }
-    return byteCount;
+    return path;
+  }
+
+  // where the group file called name goes, null unless it is a *.ser right in our directory
+  private static Path groupFile(String name) {
+    Path path = directory.resolve(name).normalize();
+    if (!directory.equals(path.getParent()) || !path.getFileName().toString().endsWith(".ser")) {
+      return null;
+    }
+    return path;
   }
 
   private static void debug(String message) {
@@ -136,33 +259,44 @@ public class GroupServer extends Thread {
 
   /**
    * main method provides an infinte loop to accept connections from clients. when
-   * a client connects, a new download thread is created to read the file and send
-   * it to the client.
+   * a client connects, the download is handed to a fixed pool of threads that
+   * read the file (or take it from the cache) and send it to the client.
+   * -Dthreads=<n> sets the pool size, -DcacheMB=<n> the memory for cached files.
    */
   public static void main(String args[]) {
-    ServerSocket serv;
+    ServerSocketChannel serv;
     int connects = 0;
     Socket sock;
-    int id = 0;
     int portNo = 3030;
     try {
-      if (args.length != 1) {
-        System.out.println("Expected Arguments: <port(int)>");
+      if (args.length < 1 || args.length > 2) {
+        System.out.println("Expected Arguments: <port(int)> [directory(String)]");
         System.exit(0);
       } else {
         portNo = Integer.parseInt(args[0]);
       }
       if (portNo <= 1024)
         portNo = 3030;
-      serv = new ServerSocket(portNo);
+      directory = Paths.get(args.length > 1 ? args[1] : ".").toAbsolutePath().normalize();
+      cache = new FileCache(Long.getLong("cacheMB", 1024) * 1024 * 1024);
+      ExecutorService pool = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(QUEUE));
+      System.out.println("GroupServer serving files from " + directory);
+      // accepting through a channel gives every socket a channel for FileTransfer
+      serv = ServerSocketChannel.open();
+      serv.bind(new InetSocketAddress(portNo));
       while (true) {
         System.out.println(
             "GroupServer waiting for client connect " + connects + " on port " + Integer.toString(portNo) + "\n");
-        sock = serv.accept();
+        sock = serv.accept().socket();
         connects = connects + 1;
         System.out.println("GroupServer connected to client: " + connects);
-        GroupServer aServer = new GroupServer(sock, connects++);
-        aServer.start();
+        try {
+          pool.execute(new GroupServer(sock, connects));
+        } catch (RejectedExecutionException e) {
+          System.out.println("GroupServer too busy, closing connection " + connects);
+          sock.close();
+        }
       }
     } catch (Exception e) {
       e.printStackTrace();
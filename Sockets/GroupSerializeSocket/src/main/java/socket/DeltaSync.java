@@ -0,0 +1,428 @@
+package socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Brings an old copy of a file up to date by sending only what changed, the way
+ * rsync does it.
+ *
+ * The side with the old copy cuts it into blocks and sends a signature: for
+ * every block a weak checksum that can be rolled along the file one byte at a
+ * time, and an MD5. The side with the new version slides a block sized window
+ * over its file. Where the weak checksum (and then the MD5) of the window is
+ * the one of an old block, it sends "copy that block" and jumps ahead a whole
+ * block, otherwise it moves on by one byte and the byte is sent as it is. So a
+ * changed byte costs about one block, no matter where it is or how much moved.
+ *
+ * signature (old copy to new version):
+ * [ blockSize(4-byte int), length(8-byte long), { weak(4-byte int), md5(16 bytes) } per block ]
+ * the last block is shorter if length is not a multiple of blockSize, blockSize
+ * is always blockSize(length) and length at most MAX_LENGTH, so a signature
+ * read from the other side never has more than a few ten thousand blocks
+ *
+ * delta (new version to old copy):
+ * COPY [ 1, firstBlock(4-byte int), count(4-byte int) ] -- blocks of the old copy
+ * DATA [ 2, length(4-byte int), bytes(length) ] -- bytes that are not in the old copy
+ * END  [ 0, length(8-byte long), md5(16 bytes) ] -- of the whole new file, checked after patching
+ */
+public class DeltaSync {
+  public static final int MIN_BLOCK = 1024;
+  public static final int MAX_BLOCK = 128 * 1024;
+  // literal bytes go in pieces of at most this
+  public static final int MAX_DATA = 64 * 1024;
+  // the biggest file we sync, its signature has about 32K blocks (and a Delta as many links)
+  public static final long MAX_LENGTH = 1L << 30;
+
+  private static final byte END = 0;
+  private static final byte COPY = 1;
+  private static final byte DATA = 2;
+  private static final int MD5_LENGTH = 16;
+
+  /**
+   * The checksums of the blocks of the old copy.
+   */
+  public static class Signature {
+    final int blockSize;
+    final long length;
+    final int[] weak;
+    final byte[] strong; // MD5_LENGTH bytes per block
+
+    Signature(int blockSize, long length) throws IOException {
+      // checked before the arrays for the blocks are allocated, the header may come from anybody
+      if (length < 0 || length > MAX_LENGTH || blockSize != blockSize(length)) {
+        throw new IOException("Bad signature: block size " + blockSize + ", length " + length);
+      }
+      this.blockSize = blockSize;
+      this.length = length;
+      int blocks = (int) ((length + blockSize - 1) / blockSize);
+      this.weak = new int[blocks];
+      this.strong = new byte[blocks * MD5_LENGTH];
+    }
+
+    public int getBlockSize() {
+      return blockSize;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+      out.writeInt(blockSize);
+      out.writeLong(length);
+      for (int i = 0; i < weak.length; i++) {
+        out.writeInt(weak[i]);
+        out.write(strong, i * MD5_LENGTH, MD5_LENGTH);
+      }
+      out.flush();
+    }
+
+    public static Signature read(DataInputStream in) throws IOException {
+      int blockSize = in.readInt();
+      long length = in.readLong();
+      Signature sig = new Signature(blockSize, length);
+      for (int i = 0; i < sig.weak.length; i++) {
+        sig.weak[i] = in.readInt();
+        in.readFully(sig.strong, i * MD5_LENGTH, MD5_LENGTH);
+      }
+      return sig;
+    }
+
+    // bytes in block i
+    int size(int i) {
+      return (int) Math.min(blockSize, length - (long) i * blockSize);
+    }
+  }
+
+  /**
+   * A block size for a file of this length, about its square root like rsync,
+   * so a big file does not get a huge signature and a small change in it does
+   * not cost a huge block.
+   */
+  public static int blockSize(long length) {
+    int size = (int) Math.min(Math.sqrt(length), MAX_BLOCK) & ~7;
+    return Math.max(MIN_BLOCK, size);
+  }
+
+  /**
+   * The signature of the old copy.
+   * @param file the old copy, null if there is none (the delta is then the whole file)
+   * @throws IOException if it cannot be read or is bigger than MAX_LENGTH
+   */
+  public static Signature signature(FileChannel file) throws IOException {
+    long length = file == null ? 0 : file.size();
+    Signature sig = new Signature(blockSize(length), length);
+    MessageDigest md5 = md5();
+    ByteBuffer block = ByteBuffer.allocate(sig.blockSize);
+    for (int i = 0; i < sig.weak.length; i++) {
+      block.clear().limit(sig.size(i));
+      readFully(file, block, (long) i * sig.blockSize);
+      sig.weak[i] = weak(block.array(), 0, block.limit());
+      md5.update(block.array(), 0, block.limit());
+      digest(md5, sig.strong, i * MD5_LENGTH);
+    }
+    return sig;
+  }
+
+  /**
+   * Sends what the owner of sig needs to turn its old copy into file.
+   * @param file the new version, read once from start to end
+   * @param sig signature of the old copy
+   * @param out where the delta goes, flushed at the end
+   * @return number of bytes sent as they are (not copied from the old copy)
+   */
+  public static long delta(FileChannel file, Signature sig, DataOutputStream out) throws IOException {
+    return new Delta(sig, out).send(file);
+  }
+
+  /**
+   * Writes the new version from the old copy and a delta, then checks its MD5.
+   * @param old the old copy the signature was made from, null if there is none
+   * @param blockSize block size of that signature
+   * @param in the delta
+   * @param out the new version, written from its start
+   * @return number of bytes that came in the delta as they are
+   * @throws IOException if the delta does not fit the old copy or the result is not the new version
+   */
+  public static long patch(FileChannel old, int blockSize, DataInputStream in, FileChannel out) throws IOException {
+    long oldLength = old == null ? 0 : old.size();
+    MessageDigest md5 = md5();
+    ByteBuffer buf = ByteBuffer.allocate(Math.max(blockSize, MAX_DATA));
+    long position = 0;
+    long literal = 0;
+    while (true) {
+      byte op = in.readByte();
+      if (op == COPY) {
+        long offset = (long) in.readInt() * blockSize;
+        long end = Math.min(offset + (long) in.readInt() * blockSize, oldLength);
+        if (offset < 0 || offset >= end) {
+          throw new IOException("Delta copies blocks the old copy does not have, at " + offset);
+        }
+        while (offset < end) {
+          buf.clear().limit((int) Math.min(buf.capacity(), end - offset));
+          readFully(old, buf, offset);
+          offset += buf.limit();
+          position += write(out, buf, position, md5);
+        }
+      } else if (op == DATA) {
+        int n = in.readInt();
+        if (n < 0 || n > MAX_DATA) {
+          throw new IOException("Bad data length in delta " + n);
+        }
+        in.readFully(buf.array(), 0, n);
+        buf.clear().limit(n);
+        position += write(out, buf, position, md5);
+        literal += n;
+      } else if (op == END) {
+        long length = in.readLong();
+        byte[] expected = new byte[MD5_LENGTH];
+        in.readFully(expected);
+        if (length != position || !Arrays.equals(expected, md5.digest())) {
+          throw new IOException("Patched file does not match, " + position + " of " + length + " bytes");
+        }
+        return literal;
+      } else {
+        throw new IOException("Bad delta operation " + op);
+      }
+    }
+  }
+
+  /*
+   * One delta being sent. The new version goes through buf: literal is where the
+   * bytes not sent yet start, window the start of the block sized window, end the
+   * end of what was read. Bytes before literal are dropped when buf is refilled.
+   */
+  private static class Delta {
+    private final Signature sig;
+    private final DataOutputStream out;
+    private final int blockSize;
+    // the first block by 16 bits of its weak checksum (+1, 0 is none) and the next
+    // one with the same bits, like rsync's table, it is looked up once per byte
+    private final int[] first = new int[1 << 16];
+    private final int[] next;
+    private final MessageDigest strong = md5();
+    private final MessageDigest whole = md5();
+    private final byte[] digest = new byte[MD5_LENGTH];
+
+    private final byte[] buf;
+    private int literal = 0;
+    private int window = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    // COPY not sent yet, the following blocks are added to it
+    private int copyFirst = -1;
+    private int copyCount = 0;
+    private long sent = 0;
+    private long length = 0;
+
+    Delta(Signature sig, DataOutputStream out) {
+      this.sig = sig;
+      this.out = out;
+      this.blockSize = sig.blockSize;
+      this.next = new int[sig.weak.length];
+      // only full blocks can match the window, a short last one is checked at the end
+      for (int i = sig.weak.length - 1; i >= 0; i--) {
+        if (sig.size(i) == blockSize) {
+          int bucket = bucket(sig.weak[i]);
+          next[i] = first[bucket] - 1;
+          first[bucket] = i + 1;
+        }
+      }
+      this.buf = new byte[Math.max(1024 * 1024, 2 * (MAX_DATA + blockSize))];
+    }
+
+    long send(FileChannel file) throws IOException {
+      int a = 0;
+      int b = 0;
+      boolean rolling = false; // a and b are those of the window
+      while (true) {
+        // one byte more than the window, to roll it
+        if (!eof && end - window <= blockSize) {
+          fill(file);
+          continue;
+        }
+        if (end - window < blockSize) {
+          break;
+        }
+        if (!rolling) {
+          a = 0;
+          b = 0;
+          for (int i = window; i < window + blockSize; i++) {
+            a += buf[i] & 0xff;
+            b += a;
+          }
+          rolling = true;
+        }
+        int block = match((a & 0xffff) | (b << 16));
+        if (block >= 0) {
+          copy(block);
+          window += blockSize;
+          literal = window;
+          rolling = false;
+          continue;
+        }
+        if (end - window == blockSize) {
+          break; // end of the file, nothing to roll in
+        }
+        int leaving = buf[window] & 0xff;
+        int entering = buf[window + blockSize] & 0xff;
+        a += entering - leaving;
+        b += a - blockSize * leaving;
+        window++;
+        if (window - literal >= MAX_DATA) {
+          data(literal, window);
+          literal = window;
+        }
+      }
+      // the rest is shorter than a block, maybe the short last block of the old copy
+      int last = sig.weak.length - 1;
+      if (last >= 0 && sig.size(last) < blockSize && end - window == sig.size(last)
+          && sameBlock(last, window, end - window)) {
+        copy(last);
+        window = end;
+        literal = end;
+      }
+      data(literal, end);
+      flushCopy();
+      out.writeByte(END);
+      out.writeLong(length);
+      out.write(whole.digest());
+      out.flush();
+      return sent;
+    }
+
+    // the old block with this weak checksum and the window's MD5, -1 if there is none
+    private int match(int weak) {
+      // the block after the one just copied is the most likely, a run of them is one COPY
+      int following = copyCount > 0 ? copyFirst + copyCount : -1;
+      if (following >= 0 && following < sig.weak.length && sig.weak[following] == weak
+          && sig.size(following) == blockSize && sameBlock(following, window, blockSize)) {
+        return following;
+      }
+      for (int i = first[bucket(weak)] - 1; i >= 0; i = next[i]) {
+        if (sig.weak[i] == weak && sameBlock(i, window, blockSize)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static int bucket(int weak) {
+      return (weak ^ (weak >>> 16)) & 0xffff;
+    }
+
+    private boolean sameBlock(int block, int from, int n) {
+      strong.update(buf, from, n);
+      digest(strong, digest, 0);
+      int at = block * MD5_LENGTH;
+      return Arrays.equals(digest, 0, MD5_LENGTH, sig.strong, at, at + MD5_LENGTH);
+    }
+
+    private void copy(int block) throws IOException {
+      data(literal, window);
+      if (copyCount > 0 && block == copyFirst + copyCount) {
+        copyCount++;
+        return;
+      }
+      flushCopy();
+      copyFirst = block;
+      copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+      if (copyCount > 0) {
+        out.writeByte(COPY);
+        out.writeInt(copyFirst);
+        out.writeInt(copyCount);
+        copyCount = 0;
+      }
+    }
+
+    private void data(int from, int to) throws IOException {
+      if (from < to) {
+        flushCopy();
+      }
+      while (from < to) {
+        int n = Math.min(MAX_DATA, to - from);
+        out.writeByte(DATA);
+        out.writeInt(n);
+        out.write(buf, from, n);
+        from += n;
+        sent += n;
+      }
+    }
+
+    // drops what was sent already and reads more of the file behind the rest
+    private void fill(FileChannel file) throws IOException {
+      System.arraycopy(buf, literal, buf, 0, end - literal);
+      window -= literal;
+      end -= literal;
+      literal = 0;
+      ByteBuffer free = ByteBuffer.wrap(buf, end, buf.length - end);
+      while (free.hasRemaining()) {
+        if (file.read(free) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      whole.update(buf, end, free.position() - end);
+      length += free.position() - end;
+      end = free.position();
+    }
+  }
+
+  // the weak checksum of rsync: a is the sum of the bytes, b the sum of the sums
+  static int weak(byte[] data, int from, int n) {
+    int a = 0;
+    int b = 0;
+    for (int i = from; i < from + n; i++) {
+      a += data[i] & 0xff;
+      b += a;
+    }
+    return (a & 0xffff) | (b << 16);
+  }
+
+  private static long write(FileChannel out, ByteBuffer data, long position, MessageDigest md5) throws IOException {
+    md5.update(data.array(), 0, data.limit());
+    int n = data.limit();
+    data.rewind();
+    while (data.hasRemaining()) {
+      out.write(data, position + data.position());
+    }
+    return n;
+  }
+
+  private static void readFully(FileChannel file, ByteBuffer into, long offset) throws IOException {
+    while (into.hasRemaining()) {
+      if (file.read(into, offset + into.position()) < 0) {
+        throw new IOException("File ended at " + (offset + into.position()));
+      }
+    }
+    into.flip();
+  }
+
+  private static void digest(MessageDigest md5, byte[] into, int at) {
+    try {
+      md5.digest(into, at, MD5_LENGTH);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No MD5", e);
+    }
+  }
+}
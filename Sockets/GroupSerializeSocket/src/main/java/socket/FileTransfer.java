@@ -0,0 +1,246 @@
+package socket;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a whole file over a connection in chunks, without waiting for an OK
+ * after every chunk.
+ *
+ * The sender keeps sending chunks as long as no more than WINDOW bytes are
+ * unacknowledged. The receiver checks the checksum of every chunk, writes it at
+ * its offset in the file and acknowledges it. A chunk with a bad checksum is
+ * asked for again, the sender goes back to it and sends everything from there
+ * again (the chunks already on the way after it are dropped by the receiver).
+ *
+ * A transfer can start at any offset, so a client with part of the file only
+ * asks for the rest. The part only fits the file if both come from the same
+ * version, that is what the whole-file digest (see digest) is for: the client
+ * keeps it with its part, the sender starts over when it no longer matches
+ * and the receiver checks the finished file against it.
+ *
+ * chunk (sender to receiver):
+ * [ offset(8-byte long), length(4-byte int), crc32(4-byte int), data(length) ]
+ * ack (receiver to sender):
+ * [ position(8-byte long) ] -- everything before position arrived,
+ * a negative value -(offset + 1) asks to send again from offset
+ *
+ * The sender hands the file data straight from the file to the socket with
+ * FileChannel.transferTo, so it is never copied through the Java heap (or
+ * takes it from a Source that keeps the file in memory).
+ */
+public class FileTransfer {
+  public static final int CHUNK_SIZE = 1024 * 1024;
+  public static final long WINDOW = 16L * CHUNK_SIZE;
+  // how often the same chunk may arrive broken before we give up
+  public static final int MAX_RESENDS = 3;
+  // bytes of the whole-file digest (MD5)
+  public static final int DIGEST_LENGTH = 16;
+
+  /**
+   * Where send takes the file from: the file itself (see source) or anything
+   * that keeps it ready, like a cache.
+   */
+  public interface Source {
+    long length();
+
+    // crc32 of the n bytes at offset, a chunk never crosses a multiple of CHUNK_SIZE
+    int checksum(long offset, int n) throws IOException;
+
+    // writes the n bytes at offset to out
+    void write(long offset, int n, WritableByteChannel out) throws IOException;
+  }
+
+  /**
+   * The open file as a Source. The checksum is taken through a mapping of the
+   * chunk, the data itself is copied by the OS from the file to the socket
+   * (FileChannel.transferTo), it never passes through the Java heap.
+   */
+  public static Source source(final FileChannel file, final long length) {
+    return new Source() {
+      private final CRC32 crc = new CRC32();
+
+      public long length() {
+        return length;
+      }
+
+      public int checksum(long offset, int n) throws IOException {
+        MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, offset, n);
+        crc.reset();
+        crc.update(data);
+        return (int) crc.getValue();
+      }
+
+      public void write(long offset, int n, WritableByteChannel out) throws IOException {
+        long done = 0;
+        while (done < n) {
+          done += file.transferTo(offset + done, n - done, out);
+        }
+      }
+    };
+  }
+
+  /**
+   * Sends length - start bytes of the file, starting at start, and returns once
+   * the receiver acknowledged all of them.
+   * @param file the open file to send
+   * @param start offset of the first byte to send
+   * @param length number of bytes in the file
+   * @param out the connection, a socket channel sends the data without copying
+   * @param in where the acks come from
+   * @return number of data bytes sent, resent chunks included
+   * @throws IOException if the connection fails or the receiver gives up
+   */
+  public static long send(FileChannel file, long start, long length, WritableByteChannel out, InputStream in)
+      throws IOException {
+    return send(source(file, length), start, out, in);
+  }
+
+  /**
+   * Sends the file from start on and returns once the receiver acknowledged all
+   * of it. Chunks end at multiples of CHUNK_SIZE (only the first one is shorter
+   * when start is not one), so a source can keep their checksums.
+   * @param file where the bytes come from
+   * @param start offset of the first byte to send
+   * @param out the connection
+   * @param in where the acks come from
+   * @return number of data bytes sent, resent chunks included
+   * @throws IOException if the connection fails or the receiver gives up
+   */
+  public static long send(Source file, long start, WritableByteChannel out, InputStream in) throws IOException {
+    DataInputStream acks = new DataInputStream(in);
+    ByteBuffer header = ByteBuffer.allocate(16);
+    long length = file.length();
+    long position = start;
+    long acked = start;
+    long sent = 0;
+    while (acked < length) {
+      // fill the window
+      while (position < length && position - acked < WINDOW) {
+        int n = (int) Math.min(CHUNK_SIZE - position % CHUNK_SIZE, length - position);
+        header.clear();
+        header.putLong(position).putInt(n).putInt(file.checksum(position, n));
+        header.flip();
+        while (header.hasRemaining()) {
+          out.write(header);
+        }
+        file.write(position, n, out);
+        position += n;
+        sent += n;
+      }
+      // wait for the receiver to make room
+      long ack = acks.readLong();
+      if (ack < 0) {
+        position = -(ack + 1);
+        if (position < acked || position >= length) {
+          throw new IOException("Receiver asked for a chunk at " + position + " that cannot be resent");
+        }
+      } else if (ack > acked) {
+        acked = Math.min(ack, length);
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Receives chunks into the file until everything up to length arrived.
+   * @param file the open file to write to, chunks are written at their offset
+   * @param start offset the sender starts at
+   * @param length number of bytes in the whole file
+   * @param in the connection the chunks come from, usually IO.getInputStream();
+   * nothing is read past the last chunk, what follows stays in it
+   * @param out where the acks go
+   * @return number of bytes written to the file
+   * @throws IOException if the connection fails or a chunk keeps arriving broken
+   */
+  public static long receive(FileChannel file, long start, long length, InputStream in, OutputStream out)
+      throws IOException {
+    // no buffer of our own, it would take whatever the connection sends after the transfer with it
+    DataInputStream chunks = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+    byte[] buf = new byte[CHUNK_SIZE];
+    ByteBuffer ack = ByteBuffer.allocate(8);
+    CRC32 crc = new CRC32();
+    long expected = start;
+    int resends = 0;
+    while (expected < length) {
+      long offset = chunks.readLong();
+      int n = chunks.readInt();
+      int checksum = chunks.readInt();
+      if (n < 0 || n > CHUNK_SIZE) {
+        throw new IOException("Bad chunk length " + n);
+      }
+      chunks.readFully(buf, 0, n);
+      if (offset != expected) {
+        continue; // sent before the sender went back to a broken chunk
+      }
+      crc.reset();
+      crc.update(buf, 0, n);
+      ack.clear();
+      if ((int) crc.getValue() == checksum) {
+        ByteBuffer data = ByteBuffer.wrap(buf, 0, n);
+        while (data.hasRemaining()) {
+          file.write(data, offset + data.position());
+        }
+        expected = offset + n;
+        resends = 0;
+        ack.putLong(expected);
+      } else {
+        // the chunks after it that are already on the way do not have the expected
+        // offset and are dropped above, the next one that has it is the resent one
+        if (++resends > MAX_RESENDS) {
+          throw new IOException("Chunk at " + offset + " keeps arriving broken");
+        }
+        ack.putLong(-(offset + 1));
+      }
+      out.write(ack.array(), 0, 8);
+      out.flush();
+    }
+    if (expected != length) {
+      throw new EOFException("Transfer ended at " + expected + " of " + length + " bytes");
+    }
+    return expected - start;
+  }
+
+  /**
+   * The MD5 of the first length bytes of the file, read chunk by chunk through
+   * a mapping. It names the version of the file a download is made of.
+   * @param file the open file
+   * @param length number of bytes in the file
+   * @return DIGEST_LENGTH bytes
+   * @throws IOException if the file cannot be read
+   */
+  public static byte[] digest(FileChannel file, long length) throws IOException {
+    MessageDigest md5 = md5();
+    for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+      md5.update(file.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, length - offset)));
+    }
+    return md5.digest();
+  }
+
+  // a digest as it goes into a request, two hex digits per byte
+  public static String hex(byte[] digest) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  public static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No MD5", e);
+    }
+  }
+}
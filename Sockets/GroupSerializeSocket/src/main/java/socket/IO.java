@@ -1,33 +1,86 @@
 package socket;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
 
+/**
+ * Messages over a socket, each one sent with its length in front:
+ * [ length(4-byte int), bytes(length) ]
+ *
+ * The receiver knows exactly where a message ends, no matter how the bytes are
+ * split up or put together on the way. Reads go through one buffer per
+ * connection, so a message takes one or two reads of the socket instead of one
+ * per byte, and a write sends length and message together.
+ *
+ * Whatever follows the messages on the same connection (like the chunks of a
+ * FileTransfer) has to be read from getInputStream, it may already be in the
+ * buffer.
+ */
 public class IO {
+  // anything bigger is not a message of ours
+  public static final int MAX_MESSAGE = 16 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  public IO(Socket sock) throws IOException {
+    this(sock.getInputStream(), sock.getOutputStream());
+  }
+
+  public IO(InputStream in, OutputStream out) {
+    this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+    this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+  }
+
   /**
-   * Socket read for an unknown receive size
-   * @param in
-   * @return byte array of the received.
-   * @throws IOException
-   * @throws InterruptedException
+   * Reads the next message
+   * @return the bytes of the message
+   * @throws EOFException if the connection is closed, between messages or in the middle of one
+   * @throws IOException if the length is not one of a message
    */
-  public static byte[] read(InputStream in) throws IOException, InterruptedException {
-    int count;
-    byte[] buffer = new byte[1];
-    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-      // startWait will allow this to block until the first packet is received
-      boolean startWait = true;
-      // while first packet or a packet is available, process
-      while ((startWait || in.available() > 0) && 
-          (count = in.read(buffer, 0, buffer.length)) != -1) { // were there bytes to read?
-        // if so, write them out
-        outputStream.write(buffer, 0, count);
-        // not first packet anymore
-        startWait = false;
-      }
-
-      return outputStream.toByteArray();
+  public byte[] read() throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_MESSAGE) {
+      throw new IOException("Invalid message length: " + length);
     }
+    byte[] message = new byte[length];
+    in.readFully(message);
+    return message;
+  }
+
+  /**
+   * Sends one message, length and bytes leave in one write if they fit the buffer
+   * @param message the bytes to send
+   * @throws IOException
+   */
+  public void write(byte[] message) throws IOException {
+    out.writeInt(message.length);
+    out.write(message);
+    out.flush();
+  }
+
+  public String readString() throws IOException {
+    return new String(read());
+  }
+
+  public void writeString(String message) throws IOException {
+    write(message.getBytes());
+  }
+
+  // the connection after the messages, starting with what is left in the buffer
+  public InputStream getInputStream() {
+    return in;
+  }
+
+  public OutputStream getOutputStream() {
+    return out;
   }
 }
@@ -1,32 +1,189 @@
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.json.*;
 
 /**
- * Client 
- * This is the Client thread class, there is a client thread for each peer we are listening to.
- * We are constantly listening and if we get a message we print it. 
+ * Client
+ * This is the Client thread class, there is ONE client thread for all the peers we are listening to.
+ * All connections are registered with one Selector, so listening to hundreds of peers does not need
+ * hundreds of threads, just a small buffer per peer.
+ * We are constantly listening and if we get a full line we print it. If a peer goes away we try to
+ * reconnect to it every few seconds.
  */
 
 public class ClientThread extends Thread {
-	private BufferedReader bufferedReader;
-	
-	public ClientThread(Socket socket) throws IOException {
-		bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+	static final long RECONNECT_DELAY_MS = 3000;
+	static final int BUFFER_SIZE = 4096;
+	// longest line we keep for a peer, one that sends more without a newline is dropped
+	static final int MAX_LINE = 64 * 1024;
+
+	private final Selector selector;
+	private final Queue<Subscription> pending = new ConcurrentLinkedQueue<Subscription>();
+	// only used from the selector thread
+	private final List<Subscription> lost = new ArrayList<Subscription>();
+
+	public ClientThread() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Start listening to the given peer. The first connect is blocking so wrong input is
+	 * noticed right away, the exception is passed on to the caller.
+	 */
+	public void listenTo(String host, int port) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		SocketChannel channel = SocketChannel.open(address);
+		channel.configureBlocking(false);
+		Subscription sub = new Subscription(address);
+		sub.channel = channel;
+		pending.add(sub);
+		selector.wakeup();
 	}
+
 	public void run() {
 		while (true) {
 			try {
-			    JSONObject json = new JSONObject(bufferedReader.readLine());
-			    System.out.println("[" + json.getString("username")+"]: " + json.getString("message"));
-			} catch (Exception e) {
-				interrupt();
+				registerPending();
+				selector.select(RECONNECT_DELAY_MS);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Subscription sub = (Subscription) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							sub.channel.finishConnect();
+							key.interestOps(SelectionKey.OP_READ);
+						} else if (key.isReadable()) {
+							read(sub);
+						}
+					} catch (IOException e) {
+						lost(sub, key);
+					}
+				}
+				reconnectDue();
+			} catch (IOException e) {
+				e.printStackTrace();
 				break;
 			}
 		}
 	}
 
+	/**
+	 * Registers subscriptions handed over from other threads, needs to happen on the selector thread
+	 */
+	private void registerPending() throws IOException {
+		Subscription sub;
+		while ((sub = pending.poll()) != null) {
+			int ops = sub.channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+			sub.channel.register(selector, ops, sub);
+		}
+	}
+
+	/**
+	 * Reads whatever is available and prints every complete line, partial lines stay in the buffer.
+	 * A line that grows past MAX_LINE loses the connection to the peer.
+	 */
+	private void read(Subscription sub) throws IOException {
+		sub.buffer.clear();
+		int n = sub.channel.read(sub.buffer);
+		if (n < 0) {
+			throw new IOException("peer closed connection");
+		}
+		sub.buffer.flip();
+		while (sub.buffer.hasRemaining()) {
+			byte b = sub.buffer.get();
+			if (b == '\n') {
+				print(sub.line.toString(StandardCharsets.UTF_8));
+				sub.line.reset();
+			} else if (b != '\r') {
+				if (sub.line.size() >= MAX_LINE) {
+					System.out.println("Line from " + sub.address + " is longer than " + MAX_LINE + " bytes");
+					throw new IOException("line too long");
+				}
+				sub.line.write(b);
+			}
+		}
+	}
+
+	private void print(String line) {
+		try {
+			JSONObject json = new JSONObject(line);
+			System.out.println("[" + json.getString("username")+"]: " + json.getString("message"));
+		} catch (JSONException e) {
+			System.out.println("Got malformed message: " + line);
+		}
+	}
+
+	/**
+	 * Peer is gone, close the channel and remember to try again later
+	 */
+	private void lost(Subscription sub, SelectionKey key) {
+		key.cancel();
+		try {
+			sub.channel.close();
+		} catch (IOException e) {
+			// nothing we can do
+		}
+		sub.channel = null;
+		sub.line.reset();
+		sub.reconnectAt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+		lost.add(sub);
+		System.out.println("Lost connection to " + sub.address + ", will try to reconnect");
+	}
+
+	/**
+	 * Starts a non blocking connect for every lost peer whose delay is over
+	 */
+	private void reconnectDue() {
+		long now = System.currentTimeMillis();
+		for (Subscription sub : lost) {
+			if (sub.reconnectAt > now) {
+				continue;
+			}
+			try {
+				sub.channel = SocketChannel.open();
+				sub.channel.configureBlocking(false);
+				sub.channel.connect(new InetSocketAddress(sub.address.getHostString(), sub.address.getPort()));
+				sub.channel.register(selector, SelectionKey.OP_CONNECT, sub);
+				sub.reconnectAt = 0;
+			} catch (IOException e) {
+				try {
+					sub.channel.close();
+				} catch (IOException ignored) {
+					// nothing we can do
+				}
+				sub.channel = null;
+				sub.reconnectAt = now + RECONNECT_DELAY_MS;
+			}
+		}
+		lost.removeIf(sub -> sub.channel != null);
+	}
+
+	/**
+	 * State for one peer we listen to, the read buffer and the bytes of the line we did not finish yet
+	 */
+	private static class Subscription {
+		final InetSocketAddress address;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		SocketChannel channel;
+		long reconnectAt;
+
+		Subscription(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
 }
@@ -1,6 +1,5 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.Socket;
 
 /**
  * This is the main class for the peer2peer program.
@@ -49,20 +48,18 @@ public class Peer {
 		System.out.println("> Who do you want to listen to? Enter host:port");
 		String input = bufferedReader.readLine();
 		String[] setupValue = input.split(" ");
+		// one client thread listens to all peers
+		ClientThread clientThread = new ClientThread();
+		clientThread.setDaemon(true);
+		clientThread.start();
 		for (int i = 0; i < setupValue.length; i++) {
 			String[] address = setupValue[i].split(":");
-			Socket socket = null;
 			try {
-				socket = new Socket(address[0], Integer.valueOf(address[1]));
-				new ClientThread(socket).start();
+				clientThread.listenTo(address[0], Integer.valueOf(address[1]));
 			} catch (Exception c) {
-				if (socket != null) {
-					socket.close();
-				} else {
-					System.out.println("Cannot connect, wrong input");
-					System.out.println("Exiting: I know really user friendly");
-					System.exit(0);
-				}
+				System.out.println("Cannot connect, wrong input");
+				System.out.println("Exiting: I know really user friendly");
+				System.exit(0);
 			}
 		}
 
@@ -1,50 +1,107 @@
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * SERVER
  * This is the ServerThread class that has a socket where we accept clients contacting us.
- * We save the clients ports connecting to the server into a List in this class. 
- * When we wand to send a message we send it to all the listening ports
+ * We save the clients connecting to the server into a concurrent Set in this class.
+ * When we want to send a message we put it into the outbound queue of every listening peer,
+ * a writer thread per listener then pushes it out. So one slow listener does not stall the others.
  */
 
 public class ServerThread extends Thread{
+	// how many messages we buffer for one listener before we consider it too slow and drop it
+	static final int QUEUE_CAPACITY = 256;
+
 	private ServerSocket serverSocket;
-	private Set<Socket> listeningSockets = new HashSet<Socket>();
-	
+	private Set<Subscriber> listeningPeers = ConcurrentHashMap.newKeySet();
+
 	public ServerThread(String portNum) throws IOException {
 		serverSocket = new ServerSocket(Integer.valueOf(portNum));
 	}
-	
+
 	/**
-	 * Starting the thread, we are waiting for clients wanting to talk to us, then save the socket in a list
+	 * Starting the thread, we are waiting for clients wanting to talk to us, then save them in our set
+	 * and start a writer thread for each of them
 	 */
 	public void run() {
 		try {
 			while (true) {
 				Socket sock = serverSocket.accept();
-				listeningSockets.add(sock);
+				Subscriber subscriber = new Subscriber(sock);
+				listeningPeers.add(subscriber);
+				subscriber.start();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
-	
+
 	/**
-	 * Sending the message to the OutputStream for each socket that we saved
+	 * Queueing the message for each listener that we saved. This never blocks, if the queue
+	 * of a listener is full the listener is not keeping up and gets dropped.
 	 */
 	void sendMessage(String message) {
-		try {
-			for (Socket s : listeningSockets) {
-				PrintWriter out = new PrintWriter(s.getOutputStream(), true);
-				out.println(message);
-		     }
-		} catch(Exception e) {
-			e.printStackTrace();
+		for (Subscriber s : listeningPeers) {
+			if (!s.queue.offer(message)) {
+				System.out.println("Dropping slow listener " + s.socket.getRemoteSocketAddress());
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * One listening peer, with its own bounded outbound queue and a writer thread draining it.
+	 * When writing fails the peer is gone and removes itself from the set.
+	 */
+	private class Subscriber extends Thread {
+		private final Socket socket;
+		private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+		private volatile boolean closed = false;
+
+		Subscriber(Socket socket) {
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+				while (!closed) {
+					String message = queue.take();
+					out.write(message);
+					out.newLine();
+					// write everything that piled up in the meantime before flushing
+					while ((message = queue.poll()) != null) {
+						out.write(message);
+						out.newLine();
+					}
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				// peer went away, nothing more to do than clean up
+			} finally {
+				close();
+			}
 		}
-	}	
+
+		void close() {
+			closed = true;
+			listeningPeers.remove(this);
+			interrupt();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
 }